@@ -47,10 +47,8 @@ public class APIError extends Exception {
         this.statusCode = statusCode;
         this.statusMessage = statusMessage;
 
-        // Error category is the first part of the error code.
         if (code != null && code.length() > 0) {
-            String[] codeParts = code.split(".", 2);
-            this.category = codeParts[0];
+            this.category = category(code);
         } else {
             this.category = "ServerError";
             code = "ServerError.UnknownError";
@@ -62,6 +60,16 @@ public class APIError extends Exception {
         this.message = message;
     }
 
+    /**
+     * The error category, which is the first part of the error code, or
+     * null if there is no code.
+     */
+    public static String category(String code) {
+        if (code == null || code.length() == 0)
+            return null;
+        return code.split("\\.", 2)[0];
+    }
+
     public String toString() {
         return code + "(" + statusCode + " "
                + statusMessage + ") on request '" + requestId
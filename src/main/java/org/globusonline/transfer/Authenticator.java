@@ -7,4 +7,18 @@ public interface Authenticator {
 	 * @param c The connection that needs to be authenticated
 	 */
 	public void authenticateConnection(HttpsURLConnection c);
+
+	/**
+	 * Authenticate a request before it is handed to the transport, usually
+	 * by setting headers.
+	 *
+	 * The default defers to {@link #authenticateConnection} once the
+	 * connection is open, which only works with URLConnectionTransport;
+	 * authenticators should override this to work with any transport.
+	 *
+	 * @param request The request that needs to be authenticated
+	 */
+	public default void authenticateRequest(TransportRequest request) {
+		request.setConnectionAuthenticator(this);
+	}
 }
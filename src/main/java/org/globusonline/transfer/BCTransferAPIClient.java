@@ -19,40 +19,45 @@ package org.globusonline.transfer;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.List;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 
-import java.security.Security;
 import java.security.cert.Certificate;
-import java.security.cert.X509Certificate;
+import java.security.cert.CertificateFactory;
 import java.security.KeyStore;
-import java.security.KeyPair;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.util.io.pem.PemReader;
-
 /**
- * Extension to the base client which supports reading PEM files using
- * Bouncy Castle, so the client cert/key don't have to be converted
- * to PKCS12.
+ * Extension to the base client which supports reading PEM files, so the
+ * client cert/key don't have to be converted to PKCS12. The files are read
+ * with {@link PemFile}, which only needs Bouncy Castle for key formats the
+ * JDK doesn't support.
  */
 public class BCTransferAPIClient extends BaseTransferAPIClient {
-    static {
-        Security.addProvider(new BouncyCastleProvider());
-    }
+    protected String trustedCAFile;
+    protected String certFile;
+    protected String keyFile;
+    private char[] keyPassword;
+
+    // Held while files are read, so not a monitor: a virtual thread
+    // waiting on the disk stays unmounted.
+    private final ReentrantLock credentialLock = new ReentrantLock();
+    private CredentialWatcher.Registration credentialWatch; // guarded by it
+    private final AtomicLong credentialReloads = new AtomicLong();
 
     public static void main(String[] args) {
         try {
@@ -142,19 +147,24 @@ public class BCTransferAPIClient extends BaseTransferAPIClient {
 
         if (trustedCAFile == null) {
             // Use default CA file that includes GoDaddy, InCommon,
-            // and GlobusOnline.
+            // and GlobusOnline. Parsed once per process, see BundledCAs.
             trustedCAFile = getClass().getResource(
-                                    "all-bundle_ca.cert").toString();
-        }
-
-		if (trustedCAFile != null) {
+                                    BUNDLED_CA_FILE).toString();
 			try {
-				this.trustManagers = createTrustManagers(trustedCAFile);
+				this.trustManagers = bundledTrustManagers();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+        } else {
+			try {
+				this.trustManagers = CredentialCache.getDefault()
+						.getTrustManagers(trustedCAFile);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
         }
 
+		this.trustedCAFile = trustedCAFile;
 		this.keyManagers = keyManagers;
 
 		initSocketFactory(true);
@@ -189,11 +199,33 @@ public class BCTransferAPIClient extends BaseTransferAPIClient {
                                String trustedCAFile, String certFile,
                                String keyFile, String baseUrl)
             throws KeyManagementException, NoSuchAlgorithmException {
+        this(username, format, trustedCAFile, certFile, keyFile, null,
+             baseUrl);
+    }
+
+    /**
+     * Create a client for the user with an encrypted client key, in
+     * PKCS#8 or OpenSSL format. The other parameters are as above.
+     *
+     * @param keyPassword  password of the key in keyFile, or null if it
+     *                     isn't encrypted. The client keeps a copy, to
+     *                     reload the key with.
+     */
+    public BCTransferAPIClient(String username, String format,
+                               String trustedCAFile, String certFile,
+                               String keyFile, char[] keyPassword,
+                               String baseUrl)
+            throws KeyManagementException, NoSuchAlgorithmException {
         super(username, format, null, null, baseUrl);
+        this.keyPassword = keyPassword == null ? null : keyPassword.clone();
 
+        // Parsed once per process for each set of files, see
+        // CredentialCache.
+        CredentialCache credentials = CredentialCache.getDefault();
         if (trustedCAFile != null) {
             try {
-                this.trustManagers = createTrustManagers(trustedCAFile);
+                this.trustManagers = credentials.getTrustManagers(
+                                                            trustedCAFile);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -201,115 +233,174 @@ public class BCTransferAPIClient extends BaseTransferAPIClient {
 
         if (certFile != null) {
             try {
-                this.keyManagers = createKeyManagers(certFile, keyFile);
+                this.keyManagers = credentials.getKeyManagers(certFile,
+                                                keyFile, this.keyPassword);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
+        this.trustedCAFile = trustedCAFile;
+        this.certFile = certFile;
+        this.keyFile = keyFile;
+
         initSocketFactory(true);
     }
 
-    static TrustManager[] createTrustManagers(String trustedCAFile)
-                            throws GeneralSecurityException, IOException {
-        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-        ks.load(null);
-
-        // Read the cert(s). The file must contain only certs, a cast
-        // Exception will be thrown if it contains anything else.
-        // TODO: wrap in friendly exception, it's a user error not a
-        // programming error if the file contains a non-cert.
-        FileReader fileReader = new FileReader(trustedCAFile);
-        PemReader r = new PemReader(fileReader);
-        X509Certificate cert = null;
+    /**
+     * Identify credentials by the files they were read from, including
+     * their modification time and size, so a short-lived client reuses
+     * the TLS sessions of earlier clients created from the same files.
+     * Key managers passed in directly are compared by instance.
+     */
+    protected Object credentialKey() {
+        List<Object> key = new ArrayList<Object>();
+        key.add(fileKey(this.trustedCAFile));
+        if (this.certFile != null) {
+            key.add(fileKey(this.certFile));
+            key.add(fileKey(this.keyFile));
+        } else if (this.keyManagers != null) {
+            key.add(Arrays.asList(this.keyManagers));
+        }
+        return key;
+    }
+
+    private static String fileKey(String path) {
+        return CredentialCache.fileKey(path);
+    }
+
+    /**
+     * Reload the CA, certificate and key files and switch new connections
+     * to them. Requests in flight finish on the connections they have, and
+     * idle connections made with the old credentials are no longer reused.
+     * If the files can't be read, the current credentials are kept.
+     */
+    public void reloadCredentials()
+            throws GeneralSecurityException, IOException {
+        credentialLock.lock();
         try {
-            Object o = null;
-            int i = 0;
-            while ((o = r.readPemObject()) != null) {
-                cert = (X509Certificate) o;
-//                System.out.println("trusted cert subject: "
-//                                   + cert.getSubjectX500Principal());
-//                System.out.println("trusted cert issuer: "
-//                                   + cert.getIssuerX500Principal());
-
-                ks.setEntry("server-ca" + i,
-                            new KeyStore.TrustedCertificateEntry(cert), null);
-                i++;
-            }
+            CredentialCache credentials = CredentialCache.getDefault();
+            TrustManager[] trustManagers = this.trustManagers;
+            KeyManager[] keyManagers = this.keyManagers;
+            if (this.trustedCAFile != null
+                && new File(this.trustedCAFile).isFile())
+                trustManagers = credentials.getTrustManagers(
+                                                        this.trustedCAFile);
+            if (this.certFile != null)
+                keyManagers = credentials.getKeyManagers(this.certFile,
+                                                         this.keyFile,
+                                                         this.keyPassword);
+            this.trustManagers = trustManagers;
+            this.keyManagers = keyManagers;
+            // The transports compare the context and socket factory they
+            // were built with, so the next request makes new connections.
+            initSocketFactory(true);
+            this.credentialReloads.incrementAndGet();
         } finally {
-            r.close();
-            fileReader.close();
+            credentialLock.unlock();
         }
-
-        // Shove the key store in a TrustManager.
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
-                                    TrustManagerFactory.getDefaultAlgorithm());
-        tmf.init(ks);
-        return tmf.getTrustManagers();
     }
 
-    // TODO: support encrypted key.
-    static KeyManager[] createKeyManagers(String certFile, String keyFile)
-                            throws GeneralSecurityException, IOException {
-        // Create a new empty key store.
-        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-        ks.load(null);
-
-        // Read the key. Ignore any none-key data in the file, to
-        // support PEM files containing both certs and keys.
-        FileReader fileReader = new FileReader(keyFile);
-        PemReader r = new PemReader(fileReader);
-        KeyPair keyPair = null;
+    /**
+     * Watch the CA, certificate and key files and reload the credentials
+     * in the background when they change, for example when a short-lived
+     * proxy certificate is renewed. Write the certificate and key within
+     * a second of each other, or better, replace them by renaming.
+     */
+    public void setWatchCredentials(boolean watch) throws IOException {
+        credentialLock.lock();
         try {
-            Object o = null;
-            while ((o = r.readPemObject()) != null) {
-                if (o instanceof KeyPair) {
-                    keyPair = (KeyPair) o;
-                }
+            if (watch == (this.credentialWatch != null))
+                return;
+            if (watch) {
+                this.credentialWatch = CredentialWatcher.getInstance().watch(
+                    this, Arrays.asList(this.trustedCAFile, this.certFile,
+                                        this.keyFile),
+                    BCTransferAPIClient::reloadCredentials);
+            } else {
+                this.credentialWatch.close();
+                this.credentialWatch = null;
             }
         } finally {
-            r.close();
-            fileReader.close();
+            credentialLock.unlock();
         }
+    }
 
-        // Read the cert(s). Ignore any none-cert data in the file, to
-        // support PEM files containing both certs and keys.
-        fileReader = new FileReader(certFile);
-        r = new PemReader(fileReader);
-        X509Certificate cert = null;
-        ArrayList<Certificate> chain = new ArrayList<Certificate>();
+    public boolean getWatchCredentials() {
+        credentialLock.lock();
         try {
-            Object o = null;
-            int i = 0;
-            while ((o = r.readPemObject()) != null) {
-                if (!(o instanceof X509Certificate))
-                    continue;
-                cert = (X509Certificate) o;
-//                System.out.println("client cert subject: "
-//                                   + cert.getSubjectX500Principal());
-//                System.out.println("client cert issuer: "
-//                                   + cert.getIssuerX500Principal());
-                chain.add(cert);
-            }
+            return this.credentialWatch != null;
         } finally {
-            r.close();
-            fileReader.close();
+            credentialLock.unlock();
+        }
+    }
+
+    /** Number of times the credentials were reloaded. */
+    public long getCredentialReloads() {
+        return this.credentialReloads.get();
+    }
+
+    private static final String BUNDLED_CA_FILE = "all-bundle_ca.cert";
+
+    /**
+     * The trust managers for the CA certificates bundled with the client,
+     * which are loaded the first time they are needed and then shared by
+     * all clients.
+     */
+    static TrustManager[] bundledTrustManagers()
+                            throws GeneralSecurityException {
+        if (BundledCAs.error != null)
+            throw new GeneralSecurityException(
+                    "Can't load bundled CA certificates", BundledCAs.error);
+        return BundledCAs.trustManagers;
+    }
+
+    /**
+     * Holder for the bundled CAs, initialized by the JVM on first access.
+     * The bundle is read with the JDK's certificate parser, so creating a
+     * client with the default CAs doesn't parse PEM with Bouncy Castle.
+     */
+    private static class BundledCAs {
+        static final TrustManager[] trustManagers;
+        static final Exception error;
+
+        static {
+            TrustManager[] managers = null;
+            Exception failure = null;
+            try {
+                managers = load();
+            } catch (Exception e) {
+                failure = e;
+            }
+            trustManagers = managers;
+            error = failure;
         }
 
-        // The KeyStore requires a password for key entries.
-        char[] password = { ' ' };
-
-        // Since we never write out the key store, we don't bother protecting
-        // the key.
-        ks.setEntry("client-key",
-                    new KeyStore.PrivateKeyEntry(keyPair.getPrivate(),
-                                         chain.toArray(new Certificate[0])),
-                    new KeyStore.PasswordProtection(password));
-
-        // Shove the key store in a KeyManager.
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
-                                    KeyManagerFactory.getDefaultAlgorithm());
-        kmf.init(ks, password);
-        return kmf.getKeyManagers();
+        private static TrustManager[] load()
+                            throws GeneralSecurityException, IOException {
+            InputStream in = BCTransferAPIClient.class.getResourceAsStream(
+                                                            BUNDLED_CA_FILE);
+            if (in == null)
+                throw new FileNotFoundException(BUNDLED_CA_FILE);
+            KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+            ks.load(null);
+            try {
+                CertificateFactory cf = CertificateFactory.getInstance(
+                                                                "X.509");
+                int i = 0;
+                for (Certificate cert
+                        : cf.generateCertificates(new BufferedInputStream(in))) {
+                    ks.setCertificateEntry("server-ca" + i, cert);
+                    i++;
+                }
+            } finally {
+                in.close();
+            }
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+                                    TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(ks);
+            return tmf.getTrustManagers();
+        }
     }
+
 }
@@ -18,14 +18,23 @@ package org.globusonline.transfer;
 
 import java.io.*;
 
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URLEncoder;
 
+import java.nio.charset.StandardCharsets;
+
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -50,12 +59,37 @@ public class BaseTransferAPIClient {
     protected Authenticator authenticator;
 
     protected boolean useMultiThreaded = false;
+    protected volatile boolean useHttp2 = false;
+    protected volatile boolean useCompression = false;
 
     protected int timeout = 30 * 1000; // 30 seconds, in milliseconds.
 
-    protected KeyManager[] keyManagers;
-    protected TrustManager[] trustManagers;
-    protected SSLSocketFactory socketFactory;
+    // Volatile because credentials may be reloaded while requests run.
+    protected volatile KeyManager[] keyManagers;
+    protected volatile TrustManager[] trustManagers;
+    // The context and the factory built from it, published together by
+    // one volatile write so a reload can't pair them up wrongly.
+    private volatile TLSSessionCache.CachedContext tls;
+
+    protected TLSSessionCache sessionCache = TLSSessionCache.getDefault();
+    protected ConnectionPool connectionPool = new ConnectionPool();
+    protected ContentDecoder contentDecoder = new ContentDecoder();
+    protected volatile RetryPolicy retryPolicy;
+    protected volatile RateLimiter rateLimiter;
+    protected volatile ConcurrencyLimiter concurrencyLimiter;
+    protected volatile Bulkhead bulkhead;
+    protected volatile RequestScheduler scheduler;
+    protected volatile String priority;
+    protected volatile CircuitBreaker circuitBreaker;
+    protected volatile HedgingPolicy hedgingPolicy;
+    private volatile ConnectionPool.PooledSocketFactory pooledSocketFactory;
+    protected volatile Transport transport;
+    protected volatile boolean useHttpClient = false;
+    private volatile URLConnectionTransport urlConnectionTransport;
+    private volatile HttpClientTransport httpClientTransport;
+
+    protected volatile ExecutorFactory executorFactory;
+    private volatile ExecutorService executor;
 
     static final String VERSION = "v0.10";
     static final String PROD_BASE_URL =
@@ -128,7 +162,7 @@ public class BaseTransferAPIClient {
         this.trustManagers = trustManagers;
         this.keyManagers = keyManagers;
 
-        this.socketFactory = null;
+        this.tls = null;
     }
 
     public void setAuthenticator(Authenticator authenticator)
@@ -136,73 +170,560 @@ public class BaseTransferAPIClient {
         this.authenticator = authenticator;
     }
 
+    /**
+     * Use the given pool for connections made by this client. A pool can
+     * be shared by several clients to put a single bound on the number of
+     * concurrent requests to the service.
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        if (connectionPool == null)
+            throw new IllegalArgumentException("connectionPool is required");
+        this.connectionPool = connectionPool;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return this.connectionPool;
+    }
+
+    /**
+     * Use the given cache for this client's TLS context. By default all
+     * clients share {@link TLSSessionCache#getDefault()}, so sessions are
+     * resumed across clients with the same credentials.
+     */
+    public void setSessionCache(TLSSessionCache sessionCache) {
+        if (sessionCache == null)
+            throw new IllegalArgumentException("sessionCache is required");
+        this.sessionCache = sessionCache;
+        initSocketFactory(true);
+    }
+
+    public TLSSessionCache getSessionCache() {
+        return this.sessionCache;
+    }
+
+    /**
+     * Set the factory for the executor that runs {@link #submit} calls and
+     * completes asynchronous requests. Use
+     * {@link ExecutorFactory#virtualThreads()} to run them on virtual
+     * threads. The previous executor, if any, is shut down once its
+     * queued tasks are done.
+     */
+    public void setExecutorFactory(ExecutorFactory executorFactory) {
+        ExecutorService old;
+        synchronized (this) {
+            this.executorFactory = executorFactory;
+            old = this.executor;
+            this.executor = null;
+        }
+        if (old != null)
+            old.shutdown();
+    }
+
+    /**
+     * The executor built from the executor factory, or a cached pool of
+     * daemon threads if no factory was set. Created on first use.
+     */
+    public ExecutorService getExecutor() {
+        ExecutorService executor = this.executor;
+        if (executor != null)
+            return executor;
+        // Only taken once per executor, not on the request path.
+        synchronized (this) {
+            if (this.executor == null) {
+                ExecutorFactory factory = this.executorFactory;
+                if (factory == null)
+                    factory = ExecutorFactory.cachedThreads();
+                this.executor = factory.newExecutor("transfer-api-client");
+            }
+            return this.executor;
+        }
+    }
+
+    /**
+     * Run a blocking call, such as a getResult, on the client's executor.
+     * With virtual threads this is a cheap way to fan out many calls.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, getExecutor());
+    }
+
     public HttpsURLConnection request(String method, String path)
           throws IOException, MalformedURLException, GeneralSecurityException,
                  APIError {
         return request(method, path, null, null);
     }
 
+    /**
+     * Send a request and return the connection once the response status
+     * and headers are available.
+     *
+     * The connection is kept alive for reuse by later requests if the
+     * caller reads the response body to the end and closes the stream.
+     * Calling disconnect() closes the underlying socket instead.
+     *
+     * Always sent with {@link URLConnectionTransport}, whatever transport
+     * the client is set to use, since it returns the connection itself.
+     */
     public HttpsURLConnection request(String method, String path, String data,
                                       Map<String, String> queryParams)
           throws IOException, MalformedURLException, GeneralSecurityException,
                  APIError {
+        TransportRequest request = newRequest(method, path,
+                                data == null ? null
+                                             : TransportRequest.Body.ofString(data),
+                                queryParams);
+        // The caller reads the raw stream, so it can't be compressed.
+        request.removeHeader("Accept-Encoding");
+        URLConnectionTransport.Response response =
+            (URLConnectionTransport.Response)
+                withPolicies(urlConnectionTransport(), false)
+                    .execute(request);
+        // The pool slot covers connecting, sending and waiting for the
+        // server; reading the body is left to the caller.
+        return checkResponse(response).detach();
+    }
+
+    /**
+     * Build a request for the given path, with the client's headers and
+     * authentication.
+     *
+     * @param body  the request body, or null for none.
+     */
+    protected TransportRequest newRequest(String method, String path,
+                                          TransportRequest.Body body,
+                                          Map<String, String> queryParams)
+            throws IOException {
         if (! path.startsWith("/")) {
             path = "/" + path;
         }
-        initSocketFactory(false);
-        
-        SSLSocketFactory tempSocketFactory = this.socketFactory;
-        if ( useMultiThreaded ) {
-        	tempSocketFactory = createSocketFactory();
-        }
-
+        String resource = path;
+        int query = resource.indexOf('?');
+        if (query >= 0)
+            resource = resource.substring(0, query);
         if (queryParams != null) {
             path += "?" + buildQueryString(queryParams);
         }
-
-        URL url = new URL(this.baseUrl + path);
-
-        HttpsURLConnection c = (HttpsURLConnection) url.openConnection();
-        c.setConnectTimeout(this.timeout);
-        c.setSSLSocketFactory(tempSocketFactory);
-        c.setRequestMethod(method);
-        c.setFollowRedirects(false);
-        c.setUseCaches(false);
-        c.setDoInput(true);
-        c.setRequestProperty("X-Transfer-API-X509-User", this.username);
-        c.setRequestProperty("X-Transfer-API-Client", this.getClass().getName()
-                             + "/" + this.CLIENT_VERSION);
-        c.setRequestProperty("Accept", this.format);
+        URI uri = toURI(this.baseUrl, path);
+
+        TransportRequest request = new TransportRequest(method, uri);
+        request.setResource(resource);
+        request.setPriority(this.priority);
+        for (Map.Entry<String, String> header
+                                : requestHeaders(body != null).entrySet()) {
+            request.setHeader(header.getKey(), header.getValue());
+        }
+        request.setBody(body);
         if (this.authenticator != null) {
-            this.authenticator.authenticateConnection(c);
+            this.authenticator.authenticateRequest(request);
         }
-        if (data != null) {
-            c.setDoOutput(true);
-            c.setRequestProperty("Content-Type", this.format);
-            c.setRequestProperty("Content-Length", "" + data.length());
+        return request;
+    }
+
+    /**
+     * Send a request with the client's transport and wait for the
+     * response status and headers. The caller must close the response.
+     *
+     * @throws APIError if the status is 400 or above.
+     */
+    protected TransportResponse execute(TransportRequest request)
+            throws IOException, APIError {
+        return checkResponse(
+                    contentDecoder.decode(
+                        transport(isHedged(request)).execute(request)));
+    }
+
+    /**
+     * Send a request without blocking the calling thread. The future
+     * completes exceptionally with an APIError if the status is 400 or
+     * above; otherwise the caller must close the response.
+     */
+    protected CompletableFuture<TransportResponse> executeAsync(
+                                            TransportRequest request) {
+        Transport transport;
+        try {
+            transport = asyncTransport(isHedged(request));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        final ContentDecoder decoder = this.contentDecoder;
+        return transport.executeAsync(request).thenCompose(response -> {
+            try {
+                return CompletableFuture.completedFuture(
+                                checkResponse(decoder.decode(response)));
+            } catch (APIError e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    private <R extends TransportResponse> R checkResponse(R response)
+            throws APIError {
+        int statusCode = response.getStatusCode();
+        if (statusCode < 400)
+            return response;
+        try {
+            throw constructAPIError(statusCode, response.getStatusMessage(),
+                                    response.getHeader("X-Transfer-API-Error"),
+                                    response.getBody());
+        } catch (IOException e) {
+            throw new APIError(statusCode, response.getStatusMessage(),
+                               response.getHeader("X-Transfer-API-Error"));
+        } finally {
+            // Drain whatever the error parser left, so the connection can
+            // be reused.
+            response.close();
         }
-        c.connect();
+    }
 
-        if (data != null) {
-            DataOutputStream out = new DataOutputStream(c.getOutputStream());
-            out.writeBytes(data);
-            out.flush();
-            out.close();
+    /**
+     * Headers sent with every request. Authentication headers are added
+     * separately by the authenticator.
+     */
+    protected Map<String, String> requestHeaders(boolean hasBody) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("X-Transfer-API-X509-User", this.username);
+        headers.put("X-Transfer-API-Client", this.getClass().getName()
+                                             + "/" + this.CLIENT_VERSION);
+        headers.put("Accept", this.format);
+        if (this.useCompression) {
+            headers.put("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+        }
+        if (hasBody) {
+            headers.put("Content-Type", this.format);
         }
+        return headers;
+    }
+
+    /**
+     * Send requests with the given transport instead of the built in
+     * ones, or null to go back to the built in transports. The transport
+     * is used as is: the client's connection pool, SSL context and
+     * timeouts only apply to the built in transports.
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Send synchronous requests with the JDK HTTP client rather than
+     * HttpsURLConnection. Asynchronous requests always use the JDK HTTP
+     * client, unless a transport was set with {@link #setTransport}.
+     */
+    public void setUseHttpClient(boolean useHttpClient) {
+        this.useHttpClient = useHttpClient;
+    }
+
+    public boolean getUseHttpClient() {
+        return this.useHttpClient;
+    }
+
+    /**
+     * Retry failed requests according to the given policy, or never retry
+     * if null, the default. Give each client its own policy for its own
+     * retry budget, or share a policy to share the budget.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * Limit the rate of requests sent by this client, or null for no
+     * limit, the default. Retries count against the limit too.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    /**
+     * Limit the number of requests in flight to what the server handles
+     * without queueing, see {@link ConcurrencyLimiter}, or null for no
+     * limit, the default. A limiter may be shared by several clients.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.concurrencyLimiter = limiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return this.concurrencyLimiter;
+    }
+
+    /**
+     * Cap the concurrent requests to each endpoint, see {@link Bulkhead},
+     * or null for no cap, the default.
+     */
+    public void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+
+    public Bulkhead getBulkhead() {
+        return this.bulkhead;
+    }
+
+    /**
+     * Send requests in the order the given scheduler picks by priority
+     * class, see {@link RequestScheduler}, or null to send them as they
+     * come, the default. Share a scheduler between the clients whose
+     * requests compete with each other.
+     */
+    public void setScheduler(RequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public RequestScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Give all requests of this client a priority class, one of the
+     * {@link RequestScheduler} class constants, or null, the default, to
+     * let the scheduler pick one by resource. A client used for bulk work
+     * can be set to BULK while sharing a scheduler with interactive
+     * clients.
+     */
+    public void setPriority(String priority) {
+        this.priority = priority;
+    }
 
-        int statusCode = c.getResponseCode();
-        if (statusCode >= 400) {
-            String statusMessage = c.getResponseMessage();
-            String errorHeader = null;
-            Map<String, List<String>> headers = c.getHeaderFields();
-            if (headers.containsKey("X-Transfer-API-Error")) {
-                errorHeader = ((List<String>)
-                               headers.get("X-Transfer-API-Error")).get(0);
+    public String getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Fail fast on requests to endpoints and resources that keep failing,
+     * or null to always send requests, the default. A breaker may be
+     * shared by several clients.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Send a hedge copy of GET requests that are slower than usual, or
+     * null to never hedge, the default. See {@link HedgingPolicy}.
+     * {@link #request} never hedges.
+     */
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return this.hedgingPolicy;
+    }
+
+    private boolean isHedged(TransportRequest request) {
+        return this.hedgingPolicy != null && request.isIdempotent()
+               && request.getMethod().equals("GET");
+    }
+
+    /**
+     * The transport synchronous requests are sent with.
+     *
+     * @param hedge  whether to hedge requests.
+     */
+    protected Transport transport(boolean hedge) {
+        return withPolicies(engine(), hedge);
+    }
+
+    /**
+     * The transport synchronous requests are sent with, without the
+     * client's policies.
+     */
+    private Transport engine() {
+        Transport transport = this.transport;
+        if (transport != null)
+            return transport;
+        if (this.useHttpClient || this.useHttp2)
+            return httpClientTransport();
+        return urlConnectionTransport();
+    }
+
+    /**
+     * Open connections to the service in the background, so that the
+     * first requests don't pay for DNS, connecting, the TLS handshake and
+     * the client's lazy initialization. Meant to be called at startup by
+     * services that care about the latency of their first requests.
+     *
+     * Each connection is opened with a HEAD request of the base URL, on
+     * the transport synchronous requests use, without the client's
+     * policies. The responses are all held until the last one arrives, so
+     * that each request needs a connection of its own. With the default
+     * transport, the number of connections is capped by the pool's
+     * maxPerRoute, and the JDK only keeps <code>http.maxConnections</code>
+     * of them (5 by default) idle afterwards.
+     *
+     * @param connections  number of connections to open.
+     * @return a future that completes with the number of connections
+     *         opened, or fails with the error of the last attempt if none
+     *         could be.
+     */
+    public CompletableFuture<Integer> warmUp(final int connections) {
+        // Nothing here blocks an executor thread: the transport may run
+        // the requests on the same executor, which can be a single thread.
+        return CompletableFuture.supplyAsync(() -> {
+            Transport engine = engine();
+            int n = connections;
+            if (engine instanceof URLConnectionTransport)
+                n = Math.min(n, this.connectionPool.getMaxPerRoute());
+            List<CompletableFuture<TransportResponse>> responses =
+                        new ArrayList<CompletableFuture<TransportResponse>>();
+            try {
+                for (int i = 0; i < n; i++) {
+                    responses.add(engine.executeAsync(
+                                    newRequest("HEAD", "/", null, null)));
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return responses;
+        }, getExecutor()).thenCompose(responses ->
+            CompletableFuture.allOf(responses.toArray(
+                        new CompletableFuture<?>[responses.size()]))
+                .handle((done, failure) -> {
+                    // All complete by now, so join doesn't wait.
+                    int opened = 0;
+                    Throwable error = null;
+                    for (CompletableFuture<TransportResponse> response
+                                                            : responses) {
+                        try {
+                            response.join().close();
+                            opened++;
+                        } catch (CompletionException e) {
+                            error = e.getCause();
+                        }
+                    }
+                    if (opened == 0 && error != null)
+                        throw new CompletionException(error);
+                    return opened;
+                }));
+    }
+
+    /**
+     * The transport asynchronous requests are sent with.
+     *
+     * @param hedge  whether to hedge requests.
+     */
+    protected Transport asyncTransport(boolean hedge) {
+        Transport transport = this.transport;
+        if (transport == null)
+            transport = httpClientTransport();
+        return withPolicies(transport, hedge);
+    }
+
+    /**
+     * Wrap a transport with the client's policies. From the inside out:
+     * hedging, which must be next to the transport to cancel attempts;
+     * the circuit breaker, so it only times the request itself; the
+     * scheduler and the concurrency limiter, outside the breaker so that
+     * waiting for a slot doesn't count as a slow call; the bulkhead, so
+     * requests to a slow endpoint wait in its own queue rather than for
+     * the client's slots;
+     * the rate limiter; and the retry policy, so every attempt of a
+     * retried request goes through the others.
+     */
+    protected Transport withPolicies(Transport transport, boolean hedge) {
+        HedgingPolicy hedgingPolicy = this.hedgingPolicy;
+        if (hedge && hedgingPolicy != null)
+            transport = new HedgingTransport(transport, hedgingPolicy);
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (circuitBreaker != null)
+            transport = new CircuitBreakerTransport(transport,
+                                                    circuitBreaker);
+        RequestScheduler scheduler = this.scheduler;
+        if (scheduler != null)
+            transport = new ScheduledTransport(transport, scheduler);
+        ConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        if (concurrencyLimiter != null)
+            transport = new ConcurrencyLimitedTransport(transport,
+                                                        concurrencyLimiter);
+        Bulkhead bulkhead = this.bulkhead;
+        if (bulkhead != null)
+            transport = new BulkheadTransport(transport, bulkhead);
+        RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null)
+            transport = new RateLimitedTransport(transport, rateLimiter);
+        RetryPolicy retryPolicy = this.retryPolicy;
+        if (retryPolicy != null)
+            transport = new RetryingTransport(transport, retryPolicy);
+        return transport;
+    }
+
+    /**
+     * The HttpsURLConnection transport, created on first use and again
+     * whenever the socket factory, pool, timeout or executor changes.
+     */
+    public URLConnectionTransport urlConnectionTransport() {
+        SSLSocketFactory factory = pooledSocketFactory(tls());
+        ConnectionPool pool = this.connectionPool;
+        ExecutorService executor = getExecutor();
+        URLConnectionTransport transport = this.urlConnectionTransport;
+        if (transport == null || transport.getSocketFactory() != factory
+            || transport.getConnectionPool() != pool
+            || transport.getConnectTimeout() != this.timeout
+            || transport.getExecutor() != executor) {
+            transport = new URLConnectionTransport(factory, pool,
+                                                   this.timeout, executor);
+            this.urlConnectionTransport = transport;
+        }
+        return transport;
+    }
+
+    /**
+     * The JDK HTTP client transport, created on first use and again
+     * whenever the SSL context, protocol, timeout or executor changes.
+     */
+    public HttpClientTransport httpClientTransport() {
+        SSLContext context = tls().context;
+        boolean http2 = this.useHttp2;
+        ExecutorService executor = getExecutor();
+        HttpClientTransport transport = this.httpClientTransport;
+        if (transport == null || transport.getSSLContext() != context
+            || transport.isHttp2() != http2
+            || transport.getConnectTimeout() != this.timeout
+            || transport.getExecutor() != executor) {
+            transport = new HttpClientTransport(context, this.timeout, http2,
+                                                executor);
+            this.httpClientTransport = transport;
+        }
+        return transport;
+    }
+
+    /**
+     * Read the rest of the stream and close it.
+     */
+    static void drain(InputStream in) {
+        try {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                // discard
             }
-            throw constructAPIError(statusCode, statusMessage, errorHeader,
-                                    c.getErrorStream());
+            in.close();
+        } catch (IOException e) {
+            // The connection won't be reused, nothing else to do.
         }
-        return c;
     }
 
     /**
@@ -222,38 +743,129 @@ public class BaseTransferAPIClient {
         this.timeout = milliseconds;
     }
 
-	/**
-	 * Enables this client to be used in a multithreaded environement.
-	 *
-     * It seems the SSLSocketFactory is not threadsafe, which means that
-     * if this class is used in a multithreaded environment there can be
-     * ssl connection issues. In order to make it thread-safe we need to
-     * create a SSLSocketFactory for every request.
+    /**
+     * Offer HTTP/2 to the server, so that concurrent requests share a few
+     * multiplexed connections instead of needing a socket each. The
+     * protocol is negotiated with ALPN; if the server doesn't accept h2,
+     * HTTP/1.1 is used.
+     *
+     * When enabled, synchronous requests are sent with the JDK HTTP client
+     * too, as with {@link #setUseHttpClient}. {@link #request} returns an
+     * HttpsURLConnection and so always uses HTTP/1.1.
+     */
+    public void setUseHttp2(boolean useHttp2) {
+        this.useHttp2 = useHttp2;
+    }
+
+    public boolean getUseHttp2() {
+        return this.useHttp2;
+    }
+
+    /**
+     * Ask the server for gzip or deflate compressed responses, which are
+     * decompressed as they are read. Worth enabling for large listings
+     * over slow links. Compression is never requested by
+     * {@link #request}, since its caller reads the raw stream.
+     */
+    public void setUseCompression(boolean useCompression) {
+        this.useCompression = useCompression;
+    }
+
+    public boolean getUseCompression() {
+        return this.useCompression;
+    }
+
+    /**
+     * The decoder for this client's responses; its stats show the bytes
+     * received and how much compression saved.
+     */
+    public ContentDecoder getContentDecoder() {
+        return this.contentDecoder;
+    }
+
+    /**
+     * No longer has any effect; the client is always safe to use from
+     * multiple threads.
+     *
+     * This used to create a new SSLSocketFactory for every request, which
+     * threw away the TLS session cache and kept connections from being
+     * reused. All threads now share a single factory, created once and
+     * safely published, and the request path takes no locks.
      *
-     * By default this is not done, since setting this options causes a
-     * (small, but noticable) performance hit.
-	 *
      * {@link ExampleParallel} shows an example of how to test multiple
      * threads.
-	 *
-     * @param multiThreaded whether to enable multi-thread support
-	 */
+     *
+     * @param multiThreaded ignored
+     * @deprecated the client is thread-safe by default.
+     */
+    @Deprecated
     public void setUseMultiThreaded(boolean multiThreaded) {
-    this.useMultiThreaded = multiThreaded; }
+        this.useMultiThreaded = multiThreaded;
+    }
 
-    protected SSLSocketFactory createSocketFactory() {
+    /**
+     * Get the SSL context and socket factory for this client's credentials
+     * from the session cache, which creates them on first use.
+     */
+    private TLSSessionCache.CachedContext createTLS() {
     	try {
-    		SSLContext context = SSLContext.getInstance("TLS");
-    		context.init(this.keyManagers, this.trustManagers, null);
-    		return context.getSocketFactory();
+    		return this.sessionCache.entry(credentialKey(),
+    		                        this.keyManagers, this.trustManagers);
     	} catch (Exception e) {
-    		throw new RuntimeException("Can't create SSLSocketFactory.", e);
+    		throw new RuntimeException("Can't create SSLContext.", e);
     	}
     }
 
-    protected synchronized void initSocketFactory(boolean force) {
-        if (this.socketFactory == null || force) {
-            this.socketFactory = createSocketFactory();
+    protected SSLSocketFactory getSocketFactory() {
+        return tls().socketFactory;
+    }
+
+    protected SSLContext getSSLContext() {
+        return tls().context;
+    }
+
+    private TLSSessionCache.CachedContext tls() {
+        TLSSessionCache.CachedContext tls = this.tls;
+        if (tls == null) {
+            tls = createTLS();
+            this.tls = tls;
+        }
+        return tls;
+    }
+
+    /**
+     * Identify the credentials of this client, so clients with the same
+     * credentials share a TLS context and its session cache. If null,
+     * contexts are only shared between clients given the same key and
+     * trust manager instances.
+     */
+    protected Object credentialKey() {
+        return null;
+    }
+
+    private SSLSocketFactory pooledSocketFactory(
+                                    TLSSessionCache.CachedContext tls) {
+        ConnectionPool pool = this.connectionPool;
+        SSLSocketFactory factory = tls.socketFactory;
+        ConnectionPool.PooledSocketFactory pooled = this.pooledSocketFactory;
+        if (pooled == null || !pooled.wraps(factory, pool)) {
+            pooled = pool.wrap(factory);
+            this.pooledSocketFactory = pooled;
+        }
+        return pooled;
+    }
+
+    /**
+     * Create the SSL context and socket factory if they don't exist yet, or
+     * unconditionally if force is true.
+     *
+     * Not synchronized: if two threads race on the lazy path, both look up
+     * the same cache entry and the last write wins. Both come from one
+     * lookup, so readers never see a factory from another context.
+     */
+    protected void initSocketFactory(boolean force) {
+        if (this.tls == null || force) {
+            this.tls = createTLS();
         }
     }
 
@@ -297,6 +909,43 @@ public class BaseTransferAPIClient {
     public String getBaseUrl() { return this.baseUrl; }
     public String getFormat() { return this.format; }
 
+    /**
+     * Build a request URI from the base URL and a path, which may carry a
+     * query. Like new URL(), this accepts characters a URI doesn't allow,
+     * such as spaces, and quotes them. Escapes already in the path are
+     * left alone, since endpoint names and query parameters come encoded.
+     */
+    static URI toURI(String baseUrl, String path)
+            throws MalformedURLException {
+        try {
+            return new URI(baseUrl + path);
+        } catch (URISyntaxException e) {
+            // Quote the illegal characters below.
+        }
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        StringBuilder quoted = new StringBuilder(baseUrl);
+        for (int i = 0; i < bytes.length; i++) {
+            int c = bytes[i] & 0xff;
+            boolean escape = c == '%' && i + 2 < bytes.length
+                             && isHexDigit(bytes[i + 1])
+                             && isHexDigit(bytes[i + 2]);
+            if (escape || c < 0x80 && (Character.isLetterOrDigit(c)
+                                || "-._~!$&'()*+,;=:@/?#".indexOf(c) >= 0))
+                quoted.append((char) c);
+            else
+                quoted.append(String.format("%%%02X", c));
+        }
+        try {
+            return new URI(quoted.toString());
+        } catch (URISyntaxException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
+    }
+
+    private static boolean isHexDigit(byte b) {
+        return Character.digit(b, 16) >= 0;
+    }
+
     public static String buildQueryString(Map<String, String> map)
     throws UnsupportedEncodingException {
         StringBuilder builder = new StringBuilder();
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bulkheads that cap the concurrent requests to each endpoint, so that a
+ * slow endpoint can only tie up its own share of the caller's threads.
+ *
+ * There is one compartment per endpoint, keyed by the segment
+ * {@link BaseTransferAPIClient#endpointPath} produces ("/endpoint/name"),
+ * so calls such as endpointLs, endpointAutoactivate and
+ * endpointDeactivate on the same endpoint share it. Requests to other
+ * resources are not limited.
+ *
+ * A compartment lets maxConcurrent requests through at once. Further
+ * requests wait in a FIFO queue of at most maxQueued requests, for at most
+ * maxWait milliseconds; requests that find the queue full, or that time
+ * out, are rejected with a {@link RequestRejectedException}. With
+ * maxQueued 0 a full compartment fails fast.
+ */
+public class Bulkhead {
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    public static final int DEFAULT_MAX_QUEUED = 8;
+    public static final long DEFAULT_MAX_WAIT = 10 * 1000;
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWait;
+    private final ConcurrentMap<String, Integer> limits =
+                                new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, Compartment> compartments =
+                                new ConcurrentHashMap<String, Compartment>();
+
+    public Bulkhead() {
+        this(DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_QUEUED, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * @param maxConcurrent  requests let through at once per endpoint.
+     * @param maxQueued  requests that may wait per endpoint.
+     * @param maxWait  longest a request may wait, in milliseconds.
+     */
+    public Bulkhead(int maxConcurrent, int maxQueued, long maxWait) {
+        if (maxConcurrent < 1 || maxQueued < 0 || maxWait < 0)
+            throw new IllegalArgumentException(
+                "need maxConcurrent >= 1, maxQueued >= 0 and maxWait >= 0");
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Give an endpoint a different cap on concurrent requests. Takes
+     * effect for requests made after the call.
+     */
+    public void setLimit(String endpointName, int maxConcurrent) {
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("maxConcurrent must be >= 1");
+        String key = key(endpointPathOf(endpointName));
+        limits.put(key, maxConcurrent);
+        Compartment compartment = compartments.get(key);
+        if (compartment != null)
+            compartment.setMaxConcurrent(maxConcurrent);
+    }
+
+    private static String endpointPathOf(String endpointName) {
+        try {
+            return BaseTransferAPIClient.endpointPath(endpointName);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * The compartment key of an API resource path, "/endpoint/name", or
+     * null if it isn't under an endpoint.
+     */
+    public static String key(String resource) {
+        if (resource == null || !resource.startsWith("/endpoint/"))
+            return null;
+        return CircuitBreaker.key(resource);
+    }
+
+    /**
+     * Wait for a slot for a request to an endpoint.
+     *
+     * @return a permit to release once the request is done, or null if the
+     *         request isn't to an endpoint.
+     * @throws RequestRejectedException if the endpoint's queue is full or
+     *         the wait timed out.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Permit acquire(TransportRequest request)
+            throws RequestRejectedException, InterruptedException {
+        String key = key(request.getResource());
+        if (key == null)
+            return null;
+        Compartment compartment = compartment(key);
+        return compartment.queue.await(compartment.acquire(), maxWait,
+                                       () -> timedOut(key));
+    }
+
+    /**
+     * Get a slot for a request without blocking. The future completes
+     * with null if the request isn't to an endpoint.
+     */
+    public CompletableFuture<Permit> acquireAsync(TransportRequest request) {
+        String key = key(request.getResource());
+        if (key == null)
+            return CompletableFuture.completedFuture(null);
+        return compartment(key).acquire();
+    }
+
+    private Compartment compartment(String key) {
+        Compartment compartment = compartments.get(key);
+        if (compartment == null) {
+            Integer limit = limits.get(key);
+            Compartment created = new Compartment(key,
+                            limit == null ? maxConcurrent : limit);
+            compartment = compartments.putIfAbsent(key, created);
+            if (compartment == null)
+                compartment = created;
+        }
+        return compartment;
+    }
+
+    private static RequestRejectedException full(String key) {
+        return new RequestRejectedException("Bulkhead full for " + key);
+    }
+
+    private static RequestRejectedException timedOut(String key) {
+        return new RequestRejectedException(
+                                    "Timed out waiting for bulkhead " + key);
+    }
+
+    public Map<String, CompartmentStats> getStats() {
+        Map<String, CompartmentStats> stats =
+                                new TreeMap<String, CompartmentStats>();
+        for (Map.Entry<String, Compartment> entry
+                                            : compartments.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().stats());
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Handed out for each request let through; released exactly once when
+     * the request is done.
+     */
+    public class Permit {
+        private final Compartment compartment;
+
+        Permit(Compartment compartment) {
+            this.compartment = compartment;
+        }
+
+        public void release() {
+            compartment.release();
+        }
+    }
+
+    /**
+     * The slots of one endpoint. Each compartment has its own queue and
+     * lock, so endpoints don't contend with each other.
+     */
+    private class Compartment {
+        final String key;
+        private volatile int maxConcurrent;
+        final PermitQueue<Permit> queue;
+
+        Compartment(String key, int maxConcurrent) {
+            this.key = key;
+            this.maxConcurrent = maxConcurrent;
+            this.queue = new PermitQueue<Permit>(() -> this.maxConcurrent,
+                                                 maxQueued,
+                                                 inFlight -> new Permit(this),
+                                                 Permit::release);
+        }
+
+        CompletableFuture<Permit> acquire() {
+            return queue.acquire(maxWait, () -> full(key),
+                                 () -> timedOut(key));
+        }
+
+        void release() {
+            queue.release();
+        }
+
+        void setMaxConcurrent(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+            queue.limitChanged();
+        }
+
+        CompartmentStats stats() {
+            return new CompartmentStats(maxConcurrent, queue.inFlight(),
+                                        queue.size(), queue.granted(),
+                                        queue.queued(), queue.rejected());
+        }
+    }
+
+    public static class CompartmentStats {
+        private final int maxConcurrent;
+        private final int inFlight;
+        private final int queueDepth;
+        private final long calls;
+        private final long queued;
+        private final long rejected;
+
+        CompartmentStats(int maxConcurrent, int inFlight, int queueDepth,
+                         long calls, long queued, long rejected) {
+            this.maxConcurrent = maxConcurrent;
+            this.inFlight = inFlight;
+            this.queueDepth = queueDepth;
+            this.calls = calls;
+            this.queued = queued;
+            this.rejected = rejected;
+        }
+
+        public int getMaxConcurrent() { return maxConcurrent; }
+        public int getInFlight() { return inFlight; }
+        public int getQueueDepth() { return queueDepth; }
+        /** Number of requests let through. */
+        public long getCalls() { return calls; }
+        /** Number of requests that had to wait. */
+        public long getQueued() { return queued; }
+        /** Number of requests rejected, queue full or timed out. */
+        public long getRejected() { return rejected; }
+
+        public String toString() {
+            return "inFlight=" + inFlight + "/" + maxConcurrent
+                   + " queueDepth=" + queueDepth + " calls=" + calls
+                   + " queued=" + queued + " rejected=" + rejected;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport that sends requests on another transport within the
+ * per-endpoint caps of a {@link Bulkhead}.
+ */
+public class BulkheadTransport implements Transport {
+    private final Transport delegate;
+    private final Bulkhead bulkhead;
+
+    public BulkheadTransport(Transport delegate, Bulkhead bulkhead) {
+        this.delegate = delegate;
+        this.bulkhead = bulkhead;
+    }
+
+    public Transport getDelegate() { return this.delegate; }
+    public Bulkhead getBulkhead() { return this.bulkhead; }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        if (Bulkhead.key(request.getResource()) == null)
+            return delegate.execute(request);
+        Bulkhead.Permit permit;
+        try {
+            permit = bulkhead.acquire(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                                "Interrupted waiting for the bulkhead of "
+                                + request.getURI());
+        }
+        try {
+            return delegate.execute(request);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public CompletableFuture<TransportResponse> executeAsync(
+                                        final TransportRequest request) {
+        if (Bulkhead.key(request.getResource()) == null)
+            return delegate.executeAsync(request);
+        return bulkhead.acquireAsync(request).thenCompose(permit ->
+            delegate.executeAsync(request).whenComplete(
+                            (response, error) -> permit.release()));
+    }
+}
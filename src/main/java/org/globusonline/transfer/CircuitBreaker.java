@@ -0,0 +1,341 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breakers that stop sending requests to an endpoint, or a
+ * resource, that keeps failing.
+ *
+ * There is one breaker per endpoint, keyed by the segment
+ * {@link BaseTransferAPIClient#endpointPath} produces ("/endpoint/name"),
+ * and one per other top level resource ("/task", "/transfer", ...), so a
+ * bad endpoint never affects calls to other endpoints.
+ *
+ * A breaker records the outcome of the last windowSize calls. A call
+ * fails if it throws an I/O error or gets a 5xx status, and is slow if it
+ * takes longer than slowCallDuration. Once at least minimumCalls have been
+ * recorded, the breaker opens if the failure rate or the slow call rate
+ * reaches its threshold. While open, calls are rejected at once with a
+ * {@link CircuitOpenException}. After openDuration, the breaker lets
+ * halfOpenCalls probe calls through; if they all succeed it closes, if
+ * any fails it opens again.
+ */
+public class CircuitBreaker {
+    public static final String CLOSED = "CLOSED";
+    public static final String OPEN = "OPEN";
+    public static final String HALF_OPEN = "HALF_OPEN";
+
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+    public static final double DEFAULT_SLOW_CALL_RATE = 0.8;
+    public static final long DEFAULT_SLOW_CALL_DURATION = 10 * 1000;
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+    public static final int DEFAULT_HALF_OPEN_CALLS = 2;
+
+    private final double failureRate;
+    private final double slowCallRate;
+    private final long slowCallNanos;
+    private final int minimumCalls;
+    private final int windowSize;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    private final ConcurrentMap<String, Breaker> breakers =
+                                new ConcurrentHashMap<String, Breaker>();
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_RATE, DEFAULT_SLOW_CALL_RATE,
+             DEFAULT_SLOW_CALL_DURATION, DEFAULT_MINIMUM_CALLS,
+             DEFAULT_WINDOW_SIZE, DEFAULT_OPEN_DURATION,
+             DEFAULT_HALF_OPEN_CALLS);
+    }
+
+    /**
+     * @param failureRate  fraction of failed calls that opens the breaker.
+     * @param slowCallRate  fraction of slow calls that opens the breaker.
+     * @param slowCallDuration  calls taking longer than this, in
+     *                          milliseconds, are slow.
+     * @param minimumCalls  calls to record before the rates are checked.
+     * @param windowSize  number of most recent calls the rates cover.
+     * @param openDuration  time to stay open before probing, in
+     *                      milliseconds.
+     * @param halfOpenCalls  probe calls needed to close again.
+     */
+    public CircuitBreaker(double failureRate, double slowCallRate,
+                          long slowCallDuration, int minimumCalls,
+                          int windowSize, long openDuration,
+                          int halfOpenCalls) {
+        if (minimumCalls < 1 || windowSize < minimumCalls)
+            throw new IllegalArgumentException(
+                                "need 1 <= minimumCalls <= windowSize");
+        if (halfOpenCalls < 1)
+            throw new IllegalArgumentException("halfOpenCalls must be >= 1");
+        this.failureRate = failureRate;
+        this.slowCallRate = slowCallRate;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+        this.minimumCalls = minimumCalls;
+        this.windowSize = windowSize;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openDuration);
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * The breaker key of an API resource path: "/endpoint/name" for
+     * anything under an endpoint, otherwise the first path segment.
+     */
+    public static String key(String resource) {
+        if (resource == null)
+            return "";
+        if (resource.startsWith("/endpoint/")) {
+            int end = resource.indexOf('/', "/endpoint/".length());
+            return end < 0 ? resource : resource.substring(0, end);
+        }
+        int end = resource.indexOf('/', 1);
+        return end < 0 ? resource : resource.substring(0, end);
+    }
+
+    /**
+     * Check that a call may go ahead.
+     *
+     * @return a permit to report the outcome of the call to.
+     * @throws CircuitOpenException if the breaker for the request is open.
+     */
+    public Permit acquire(TransportRequest request)
+            throws CircuitOpenException {
+        String key = key(request.getResource());
+        Breaker breaker = breakers.get(key);
+        if (breaker == null) {
+            Breaker created = new Breaker();
+            breaker = breakers.putIfAbsent(key, created);
+            if (breaker == null)
+                breaker = created;
+        }
+        return breaker.acquire(key);
+    }
+
+    /**
+     * The state of the breaker for a key, one of CLOSED, OPEN and
+     * HALF_OPEN.
+     */
+    public String getState(String key) {
+        Breaker breaker = breakers.get(key);
+        return breaker == null ? CLOSED : breaker.state;
+    }
+
+    public Map<String, BreakerStats> getStats() {
+        Map<String, BreakerStats> stats =
+                                    new TreeMap<String, BreakerStats>();
+        for (Map.Entry<String, Breaker> entry : breakers.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().stats());
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Handed out for each call let through; the caller reports how the
+     * call went exactly once.
+     */
+    public class Permit {
+        private final Breaker breaker;
+        private final boolean probe;
+        private final long start = System.nanoTime();
+
+        Permit(Breaker breaker, boolean probe) {
+            this.breaker = breaker;
+            this.probe = probe;
+        }
+
+        public void success() {
+            breaker.record(false, System.nanoTime() - start, probe);
+        }
+
+        public void failure() {
+            breaker.record(true, System.nanoTime() - start, probe);
+        }
+    }
+
+    /**
+     * One circuit. The state is read without locking on every call; the
+     * window of outcomes is only locked to record one, and each breaker
+     * has its own lock, so endpoints don't contend with each other.
+     */
+    private class Breaker {
+        volatile String state = CLOSED;
+        private volatile long openedAt;
+        private final AtomicInteger probes = new AtomicInteger();
+        private int probeSuccesses;
+
+        // Ring buffer of the last windowSize outcomes.
+        private final boolean[] failed = new boolean[windowSize];
+        private final boolean[] slow = new boolean[windowSize];
+        private int next;
+        private int recorded;
+        private int failures;
+        private int slowCalls;
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong opened = new AtomicLong();
+
+        Permit acquire(String key) throws CircuitOpenException {
+            String state = this.state;
+            if (state == CLOSED) {
+                calls.incrementAndGet();
+                return new Permit(this, false);
+            }
+            if (state == OPEN) {
+                long openFor = System.nanoTime() - openedAt;
+                if (openFor < openNanos) {
+                    rejected.incrementAndGet();
+                    throw new CircuitOpenException(key,
+                        TimeUnit.NANOSECONDS.toMillis(openNanos - openFor));
+                }
+                synchronized (this) {
+                    if (this.state == OPEN) {
+                        this.state = HALF_OPEN;
+                        probes.set(0);
+                        probeSuccesses = 0;
+                    }
+                }
+            }
+            if (this.state == HALF_OPEN) {
+                if (probes.incrementAndGet() <= halfOpenCalls) {
+                    calls.incrementAndGet();
+                    return new Permit(this, true);
+                }
+                rejected.incrementAndGet();
+                throw new CircuitOpenException(key, 0);
+            }
+            // Closed again while we were looking.
+            calls.incrementAndGet();
+            return new Permit(this, false);
+        }
+
+        synchronized void record(boolean failure, long nanos,
+                                 boolean probe) {
+            boolean isSlow = nanos > slowCallNanos;
+            if (probe) {
+                if (state != HALF_OPEN)
+                    return;
+                if (failure || isSlow) {
+                    open();
+                } else if (++probeSuccesses >= halfOpenCalls) {
+                    state = CLOSED;
+                    clearWindow();
+                }
+                return;
+            }
+            if (state != CLOSED)
+                return;
+
+            if (recorded == windowSize) {
+                if (this.failed[next])
+                    failures--;
+                if (this.slow[next])
+                    slowCalls--;
+            } else {
+                recorded++;
+            }
+            this.failed[next] = failure;
+            this.slow[next] = isSlow;
+            if (failure)
+                failures++;
+            if (isSlow)
+                slowCalls++;
+            next = (next + 1) % windowSize;
+
+            if (recorded >= minimumCalls
+                && (failures >= failureRate * recorded
+                    || slowCalls >= slowCallRate * recorded)) {
+                open();
+            }
+        }
+
+        private void open() {
+            openedAt = System.nanoTime();
+            state = OPEN;
+            opened.incrementAndGet();
+            clearWindow();
+        }
+
+        private void clearWindow() {
+            for (int i = 0; i < windowSize; i++) {
+                failed[i] = false;
+                slow[i] = false;
+            }
+            next = 0;
+            recorded = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+
+        synchronized BreakerStats stats() {
+            return new BreakerStats(state, calls.get(), rejected.get(),
+                                    opened.get(), recorded, failures,
+                                    slowCalls);
+        }
+    }
+
+    public static class BreakerStats {
+        private final String state;
+        private final long calls;
+        private final long rejected;
+        private final long opened;
+        private final int windowCalls;
+        private final int windowFailures;
+        private final int windowSlowCalls;
+
+        BreakerStats(String state, long calls, long rejected, long opened,
+                     int windowCalls, int windowFailures,
+                     int windowSlowCalls) {
+            this.state = state;
+            this.calls = calls;
+            this.rejected = rejected;
+            this.opened = opened;
+            this.windowCalls = windowCalls;
+            this.windowFailures = windowFailures;
+            this.windowSlowCalls = windowSlowCalls;
+        }
+
+        public String getState() { return state; }
+        /** Number of calls let through. */
+        public long getCalls() { return calls; }
+        /** Number of calls rejected while open. */
+        public long getRejected() { return rejected; }
+        /** Number of times the breaker opened. */
+        public long getOpened() { return opened; }
+        public int getWindowCalls() { return windowCalls; }
+        public int getWindowFailures() { return windowFailures; }
+        public int getWindowSlowCalls() { return windowSlowCalls; }
+
+        public String toString() {
+            return state + " calls=" + calls + " rejected=" + rejected
+                   + " opened=" + opened + " window=" + windowFailures
+                   + "/" + windowSlowCalls + "/" + windowCalls;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport that sends requests on another transport through a
+ * {@link CircuitBreaker}, failing fast while the breaker for a request's
+ * endpoint or resource is open.
+ */
+public class CircuitBreakerTransport implements Transport {
+    private final Transport delegate;
+    private final CircuitBreaker breaker;
+
+    public CircuitBreakerTransport(Transport delegate,
+                                   CircuitBreaker breaker) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+    }
+
+    public Transport getDelegate() { return this.delegate; }
+    public CircuitBreaker getBreaker() { return this.breaker; }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        CircuitBreaker.Permit permit = breaker.acquire(request);
+        TransportResponse response;
+        try {
+            response = delegate.execute(request);
+        } catch (IOException e) {
+            permit.failure();
+            throw e;
+        } catch (RuntimeException e) {
+            permit.failure();
+            throw e;
+        }
+        record(permit, response);
+        return response;
+    }
+
+    public CompletableFuture<TransportResponse> executeAsync(
+                                                TransportRequest request) {
+        final CircuitBreaker.Permit permit;
+        try {
+            permit = breaker.acquire(request);
+        } catch (CircuitOpenException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return delegate.executeAsync(request).whenComplete(
+                                                    (response, error) -> {
+            if (error != null)
+                permit.failure();
+            else
+                record(permit, response);
+        });
+    }
+
+    private static void record(CircuitBreaker.Permit permit,
+                               TransportResponse response) {
+        if (response.getStatusCode() >= 500)
+            permit.failure();
+        else
+            permit.success();
+    }
+}
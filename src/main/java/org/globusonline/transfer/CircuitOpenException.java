@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+/**
+ * Thrown instead of sending a request while the circuit breaker for its
+ * endpoint or resource is open.
+ */
+public class CircuitOpenException extends RequestRejectedException {
+    private final String key;
+    private final long retryAfter;
+
+    public CircuitOpenException(String key, long retryAfter) {
+        super("Circuit breaker open for " + key);
+        this.key = key;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * The breaker key, such as "/endpoint/name".
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Milliseconds until the breaker lets probe calls through, or 0 if it
+     * already does.
+     */
+    public long getRetryAfter() {
+        return this.retryAfter;
+    }
+}
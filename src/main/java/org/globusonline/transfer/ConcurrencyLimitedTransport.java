@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Transport that sends requests on another transport within the limit
+ * of a {@link ConcurrencyLimiter}, and reports their latency to it.
+ */
+public class ConcurrencyLimitedTransport implements Transport {
+    private final Transport delegate;
+    private final ConcurrencyLimiter limiter;
+
+    public ConcurrencyLimitedTransport(Transport delegate,
+                                       ConcurrencyLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    public Transport getDelegate() { return this.delegate; }
+    public ConcurrencyLimiter getLimiter() { return this.limiter; }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        ConcurrencyLimiter.Permit permit;
+        try {
+            permit = limiter.acquire(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                            "Interrupted waiting for the concurrency limit on "
+                            + request.getURI());
+        }
+        TransportResponse response;
+        try {
+            response = delegate.execute(request);
+        } catch (IOException e) {
+            failed(permit, e);
+            throw e;
+        } catch (RuntimeException e) {
+            permit.ignore();
+            throw e;
+        }
+        record(permit, response);
+        return response;
+    }
+
+    public CompletableFuture<TransportResponse> executeAsync(
+                                        final TransportRequest request) {
+        return limiter.acquireAsync(request).thenCompose(permit ->
+            delegate.executeAsync(request).whenComplete((response, error) -> {
+                if (error == null)
+                    record(permit, response);
+                else
+                    failed(permit, error instanceof CompletionException
+                                   && error.getCause() != null
+                                   ? error.getCause() : error);
+            }));
+    }
+
+    /**
+     * A request rejected by a client side policy never reached the
+     * server, so it says nothing about the server's load.
+     */
+    private static void failed(ConcurrencyLimiter.Permit permit,
+                               Throwable error) {
+        if (error instanceof IOException
+            && !(error instanceof RequestRejectedException))
+            permit.dropped();
+        else
+            permit.ignore();
+    }
+
+    private static void record(ConcurrencyLimiter.Permit permit,
+                               TransportResponse response) {
+        int status = response.getStatusCode();
+        if (status == 429 || status == 503)
+            permit.dropped();
+        else
+            permit.success();
+    }
+}
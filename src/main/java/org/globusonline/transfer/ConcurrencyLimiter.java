@@ -0,0 +1,309 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit on the number of requests a client has in flight, adapted to the
+ * latency the server shows.
+ *
+ * The limit follows a gradient algorithm, updated once per round trip.
+ * The minimum latency seen stands for the latency of an unloaded server,
+ * and the average latency of the round trip is compared to it. While
+ * latency stays within tolerance of the minimum, the limit grows by its
+ * square root. When latency rises further, showing that requests are
+ * queueing at the server, the limit shrinks in proportion. The minimum
+ * creeps up slowly, so that it follows a server that got slower for
+ * good. A dropped request (an I/O error, 429 or 503) cuts the limit
+ * by the backoff ratio, as in AIMD. The limit only grows while the client
+ * actually uses at least half of it.
+ *
+ * Requests over the limit wait in a FIFO queue, for up to the acquire
+ * timeout: -1 waits as long as needed, 0 fails fast, and a positive value
+ * waits at most that many milliseconds. Requests that time out are
+ * rejected with a {@link RequestRejectedException}. Asynchronous requests
+ * wait in the same queue without holding a thread.
+ *
+ * A request holds its slot until the response headers arrive, so the
+ * latency measured is the server's, not the time the caller takes to
+ * read the body.
+ */
+public class ConcurrencyLimiter {
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 200;
+    public static final double DEFAULT_TOLERANCE = 1.5;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    public static final long WAIT_FOREVER = PermitQueue.WAIT_FOREVER;
+    public static final long FAIL_FAST = 0;
+
+    // How much the minimum latency creeps up every round trip.
+    private static final double MIN_RTT_DRIFT = 1.002;
+    // The limit is updated once per window of at least this many samples,
+    // and at least as many as the limit, which is about one round trip.
+    private static final int MIN_WINDOW = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoffRatio;
+    private volatile long acquireTimeout = WAIT_FOREVER;
+
+    // Guarded by this. The limit is also read by the queue.
+    private double estimate;
+    private volatile int limit;
+    private double minRttNanos;
+    private long lastRttNanos;
+    private long windowMinRttNanos = Long.MAX_VALUE;
+    private long windowRttNanos;
+    private int windowSamples;
+    private int windowMaxInFlight;
+    private final PermitQueue<Permit> queue = new PermitQueue<Permit>(
+                        () -> limit, Integer.MAX_VALUE, Permit::new,
+                        Permit::ignore);
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+             DEFAULT_TOLERANCE, DEFAULT_BACKOFF_RATIO);
+    }
+
+    /**
+     * @param initialLimit  limit to start with.
+     * @param minLimit  the limit never goes below this.
+     * @param maxLimit  the limit never goes above this.
+     * @param tolerance  how much latency may rise over the long term
+     *                   average before the limit shrinks, as a ratio.
+     * @param backoffRatio  factor the limit is multiplied by when a
+     *                      request is dropped.
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+                              double tolerance, double backoffRatio) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+            || initialLimit > maxLimit)
+            throw new IllegalArgumentException(
+                        "need 1 <= minLimit <= initialLimit <= maxLimit");
+        if (tolerance < 1 || backoffRatio <= 0 || backoffRatio >= 1)
+            throw new IllegalArgumentException(
+                        "need tolerance >= 1 and 0 < backoffRatio < 1");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+        this.estimate = initialLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * @param milliseconds  WAIT_FOREVER, FAIL_FAST, or the longest time a
+     *                      request may wait for a slot.
+     */
+    public void setAcquireTimeout(long milliseconds) {
+        this.acquireTimeout = milliseconds;
+    }
+
+    public long getAcquireTimeout() {
+        return this.acquireTimeout;
+    }
+
+    /**
+     * The current limit on requests in flight.
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * The number of requests waiting for a slot.
+     */
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Wait for a slot for a request.
+     *
+     * @throws RequestRejectedException if none is free within the acquire
+     *         timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Permit acquire(TransportRequest request)
+            throws RequestRejectedException, InterruptedException {
+        return queue.await(acquireAsync(request), this.acquireTimeout,
+                           () -> rejected(request));
+    }
+
+    /**
+     * Get a slot for a request without blocking. The future completes
+     * when the slot is free, or fails with a RequestRejectedException
+     * after the acquire timeout.
+     */
+    public CompletableFuture<Permit> acquireAsync(
+                                        final TransportRequest request) {
+        requests.incrementAndGet();
+        return queue.acquire(this.acquireTimeout, () -> rejected(request),
+                             () -> rejected(request));
+    }
+
+    private static RequestRejectedException rejected(
+                                                TransportRequest request) {
+        return new RequestRejectedException("Concurrency limit reached for "
+                                            + request.getMethod() + " "
+                                            + request.getResource());
+    }
+
+    /**
+     * Handed out for each request let through; the caller reports how the
+     * request went exactly once, which frees the slot.
+     */
+    public class Permit {
+        private final int inFlightAtStart;
+        private final long start = System.nanoTime();
+
+        Permit(int inFlightAtStart) {
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /** The server answered. */
+        public void success() {
+            release(System.nanoTime() - start, inFlightAtStart, false);
+        }
+
+        /** The request was dropped, or the server was overloaded. */
+        public void dropped() {
+            release(System.nanoTime() - start, inFlightAtStart, true);
+        }
+
+        /** The request didn't reach the server; don't learn from it. */
+        public void ignore() {
+            release(-1, inFlightAtStart, false);
+        }
+    }
+
+    private void release(long rttNanos, int inFlightAtStart,
+                         boolean dropped) {
+        synchronized (this) {
+            if (dropped)
+                drop();
+            else if (rttNanos > 0)
+                sample(rttNanos, inFlightAtStart);
+        }
+        queue.release();
+    }
+
+    private void drop() {
+        drops.incrementAndGet();
+        clearWindow();
+        estimate = Math.max(minLimit, estimate * backoffRatio);
+        limit = (int) estimate;
+    }
+
+    private void clearWindow() {
+        windowMinRttNanos = Long.MAX_VALUE;
+        windowRttNanos = 0;
+        windowSamples = 0;
+        windowMaxInFlight = 0;
+    }
+
+    private void sample(long rttNanos, int inFlightAtStart) {
+        lastRttNanos = rttNanos;
+        windowMinRttNanos = Math.min(windowMinRttNanos, rttNanos);
+        windowRttNanos += rttNanos;
+        windowSamples++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlightAtStart);
+        if (windowSamples < Math.max(MIN_WINDOW, limit))
+            return;
+        double averageRtt = (double) windowRttNanos / windowSamples;
+        int maxInFlight = windowMaxInFlight;
+        minRttNanos = minRttNanos == 0 ? windowMinRttNanos
+                      : Math.min(windowMinRttNanos,
+                                 minRttNanos * MIN_RTT_DRIFT);
+        clearWindow();
+
+        double gradient = Math.max(0.5, Math.min(1.0,
+                                    tolerance * minRttNanos / averageRtt));
+        // An app limited client tells nothing about a higher limit.
+        double growth = maxInFlight < estimate / 2 ? 0
+                                                   : Math.sqrt(estimate);
+        estimate = estimate * gradient + growth;
+        estimate = Math.max(minLimit, Math.min(maxLimit, estimate));
+        limit = (int) estimate;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(limit, queue.inFlight(), queue.size(),
+                         requests.get(), queue.queued(), queue.rejected(),
+                         drops.get(), (long) minRttNanos, lastRttNanos);
+    }
+
+    public static class Stats {
+        private final int limit;
+        private final int inFlight;
+        private final int queueDepth;
+        private final long requests;
+        private final long queued;
+        private final long rejected;
+        private final long drops;
+        private final long minRttNanos;
+        private final long lastRttNanos;
+
+        Stats(int limit, int inFlight, int queueDepth, long requests,
+              long queued, long rejected, long drops, long minRttNanos,
+              long lastRttNanos) {
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.queueDepth = queueDepth;
+            this.requests = requests;
+            this.queued = queued;
+            this.rejected = rejected;
+            this.drops = drops;
+            this.minRttNanos = minRttNanos;
+            this.lastRttNanos = lastRttNanos;
+        }
+
+        public int getLimit() { return limit; }
+        public int getInFlight() { return inFlight; }
+        /** Number of requests waiting for a slot. */
+        public int getQueueDepth() { return queueDepth; }
+        public long getRequests() { return requests; }
+        /** Number of requests that had to wait for a slot. */
+        public long getQueued() { return queued; }
+        /** Number of requests rejected for exceeding the timeout. */
+        public long getRejected() { return rejected; }
+        /** Number of dropped requests, each of which cut the limit. */
+        public long getDrops() { return drops; }
+        /** Estimated latency of an unloaded server, in milliseconds. */
+        public double getMinRttMillis() { return minRttNanos / 1e6; }
+        /** Latency of the last response, in milliseconds. */
+        public double getLastRttMillis() { return lastRttNanos / 1e6; }
+
+        public String toString() {
+            return "limit=" + limit + " inFlight=" + inFlight
+                   + " queueDepth=" + queueDepth + " requests=" + requests
+                   + " queued=" + queued + " rejected=" + rejected
+                   + " drops=" + drops + " minRttMillis="
+                   + String.format("%.1f", getMinRttMillis())
+                   + " lastRttMillis="
+                   + String.format("%.1f", getLastRttMillis());
+        }
+    }
+}
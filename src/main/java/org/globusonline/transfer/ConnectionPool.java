@@ -0,0 +1,573 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URL;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Bounded, per-route pool of persistent HTTPS connections.
+ *
+ * Connections are kept alive by the JDK's HTTP keep-alive cache, which
+ * hands an idle socket back to the next request for the same host, port
+ * and socket factory. This class adds what the JDK cache lacks: a limit on
+ * the number of concurrent requests per route and in total, eviction of
+ * connections on routes that have been idle for too long, and statistics
+ * on how often connections are actually reused.
+ *
+ * Reuse only happens when the response body is read to the end and the
+ * stream is closed, rather than calling disconnect() on the connection.
+ * A connection is idle when it has not been read from or written to for
+ * the idle timeout and its route has no requests in flight, so a caller
+ * still reading a body it was handed isn't cut off.
+ * The number of idle connections the JDK keeps per route is set by the
+ * <code>http.maxConnections</code> system property (default 5); it should
+ * be raised to match maxPerRoute for heavily concurrent clients.
+ *
+ * A pool may be shared by several clients, see
+ * {@link BaseTransferAPIClient#setConnectionPool}.
+ */
+public class ConnectionPool {
+    public static final int DEFAULT_MAX_PER_ROUTE = 10;
+    public static final int DEFAULT_MAX_TOTAL = 50;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000; // 1 minute
+
+    private final int maxPerRoute;
+    private final int maxTotal;
+    private final long idleTimeout;
+
+    private final Semaphore totalPermits;
+    private final ConcurrentMap<String, Route> routes =
+                                    new ConcurrentHashMap<String, Route>();
+    private final ConcurrentMap<Socket, Connection> sockets =
+                                new ConcurrentHashMap<Socket, Connection>();
+
+    // When lease() next sweeps for idle connections.
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_PER_ROUTE, DEFAULT_MAX_TOTAL, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param maxPerRoute  maximum number of concurrent requests to a single
+     *                     host and port.
+     * @param maxTotal  maximum number of concurrent requests over all routes.
+     * @param idleTimeout  milliseconds without I/O after which connections
+     *                     of a route with no requests in flight are closed.
+     */
+    public ConnectionPool(int maxPerRoute, int maxTotal, long idleTimeout) {
+        if (maxPerRoute < 1 || maxTotal < 1)
+            throw new IllegalArgumentException(
+                                    "pool limits must be at least 1");
+        this.maxPerRoute = maxPerRoute;
+        this.maxTotal = maxTotal;
+        this.idleTimeout = idleTimeout;
+        this.totalPermits = new Semaphore(maxTotal, true);
+    }
+
+    /**
+     * Reserve a slot for a request to the host of the given URL, waiting
+     * at most timeout milliseconds for one to become available.
+     *
+     * The returned lease must be released when the response has been
+     * consumed.
+     */
+    public Lease lease(URL url, long timeout) throws IOException {
+        sweepIfDue();
+
+        Route route = route(routeKey(url));
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            if (!route.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new IOException("Timed out waiting for a connection to "
+                                      + route.key);
+            long remaining = deadline - System.nanoTime();
+            if (!totalPermits.tryAcquire(remaining, TimeUnit.NANOSECONDS)) {
+                route.permits.release();
+                throw new IOException("Timed out waiting for a connection, "
+                                      + maxTotal + " requests in flight");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                            "Interrupted waiting for a connection to "
+                            + route.key);
+        }
+        waitNanos.addAndGet(System.nanoTime() - start);
+        leases.incrementAndGet();
+        route.active.incrementAndGet();
+        return new Lease(route);
+    }
+
+    /**
+     * Wrap a socket factory so that connections it creates are tracked by
+     * this pool. The same wrapper must be used for every request, since the
+     * JDK only reuses a kept-alive connection for the factory that
+     * created it.
+     */
+    public PooledSocketFactory wrap(SSLSocketFactory factory) {
+        return new PooledSocketFactory(factory, this);
+    }
+
+    /**
+     * Sweep at most every half idle timeout, so a lease doesn't cost a
+     * scan of every open connection.
+     */
+    private void sweepIfDue() {
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+        if (now < next || !nextSweep.compareAndSet(next,
+                                        now + Math.max(1, idleTimeout / 2)))
+            return;
+        closeIdleConnections();
+    }
+
+    /**
+     * Close the connections that have been idle for longer than the idle
+     * timeout, on routes with no requests in flight, and forget sockets
+     * that were closed or never connected. Called from lease every half
+     * idle timeout, so there is normally no need to call this directly.
+     */
+    public void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Socket, Connection>> it =
+                                            sockets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Socket, Connection> entry = it.next();
+            Socket s = entry.getKey();
+            Connection c = entry.getValue();
+            if (s.isClosed()) {
+                it.remove();
+                continue;
+            }
+            String routeKey = c.route;
+            if (!s.isConnected() || routeKey == null) {
+                // Created for a connection attempt that never completed.
+                if (now - c.lastActive > idleTimeout) {
+                    it.remove();
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                        // Never connected, nothing to evict.
+                    }
+                }
+                continue;
+            }
+            Route route = routes.get(routeKey);
+            if (route != null && route.active.get() > 0)
+                continue;
+            if (c.busy.get() > 0 || now - c.lastActive(route) <= idleTimeout)
+                continue;
+            it.remove();
+            close(s);
+        }
+    }
+
+    /**
+     * Close every tracked connection, regardless of whether it is idle.
+     */
+    public void shutdown() {
+        closeConnections(null);
+    }
+
+    public Stats getStats() {
+        int open = 0;
+        int active = 0;
+        Iterator<Socket> it = sockets.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().isClosed())
+                it.remove();
+            else
+                open++;
+        }
+        for (Route route : routes.values()) {
+            active += route.active.get();
+        }
+        return new Stats(leases.get(), created.get(), evicted.get(), open,
+                         active, routes.size(), waitNanos.get());
+    }
+
+    public int getMaxPerRoute() { return this.maxPerRoute; }
+    public int getMaxTotal() { return this.maxTotal; }
+    public long getIdleTimeout() { return this.idleTimeout; }
+
+    private void connectionCreated(Socket socket, Connection connection) {
+        created.incrementAndGet();
+        sockets.put(socket, connection);
+    }
+
+    /**
+     * Close the tracked connections to the given route, or all of them
+     * if routeKey is null. Sockets that are not connected yet belong to a
+     * request in flight and are left alone.
+     */
+    private void closeConnections(String routeKey) {
+        Iterator<Map.Entry<Socket, Connection>> it =
+                                            sockets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Socket, Connection> entry = it.next();
+            Socket s = entry.getKey();
+            if (s.isClosed()) {
+                it.remove();
+                continue;
+            }
+            if (!s.isConnected())
+                continue;
+            if (routeKey != null && !routeKey.equals(entry.getValue().route))
+                continue;
+            it.remove();
+            close(s);
+        }
+    }
+
+    private void close(Socket s) {
+        try {
+            s.close();
+            evicted.incrementAndGet();
+        } catch (IOException e) {
+            // Nothing useful to do, the socket is being thrown away.
+        }
+    }
+
+    private Route route(String key) {
+        Route route = routes.get(key);
+        if (route == null) {
+            route = new Route(key, maxPerRoute);
+            Route existing = routes.putIfAbsent(key, route);
+            if (existing != null)
+                route = existing;
+        }
+        return route;
+    }
+
+    private static String routeKey(URL url) {
+        int port = url.getPort();
+        if (port == -1)
+            port = url.getDefaultPort();
+        return routeKey(url.getHost(), port);
+    }
+
+    /**
+     * The route of a host name or address literal, as given in the URL;
+     * never looked up in DNS.
+     */
+    private static String routeKey(String host, int port) {
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        return host + ":" + port;
+    }
+
+    private static String routeKey(InetAddress address, int port) {
+        // getHostString doesn't do a reverse lookup.
+        return routeKey(new InetSocketAddress(address, port).getHostString(),
+                        port);
+    }
+
+    /**
+     * What the pool knows about a connection: its route, once known, and
+     * when it was last used.
+     */
+    private static class Connection {
+        volatile String route;
+        // Only kept up to date for connections the pool sees the I/O of;
+        // for the others, the route's last use stands in.
+        final boolean tracksActivity;
+        volatile long lastActive = System.currentTimeMillis();
+        // Reads or writes in progress, counted without a lock since every
+        // read and write of the socket goes through here.
+        final AtomicInteger busy = new AtomicInteger();
+
+        Connection(String route, boolean tracksActivity) {
+            this.route = route;
+            this.tracksActivity = tracksActivity;
+        }
+
+        long lastActive(Route route) {
+            if (tracksActivity || route == null)
+                return lastActive;
+            return route.lastUsed;
+        }
+    }
+
+    /**
+     * Plain socket that records when it is read from or written to.
+     * HttpsURLConnection asks the factory for an unconnected socket,
+     * connects it, then layers TLS over it with
+     * {@link PooledSocketFactory#createSocket(Socket, String, int, boolean)},
+     * so all of the connection's I/O goes through these streams.
+     */
+    private static class TrackedSocket extends Socket {
+        final Connection connection = new Connection(null, true);
+
+        public void connect(SocketAddress endpoint, int timeout)
+                throws IOException {
+            if (endpoint instanceof InetSocketAddress) {
+                InetSocketAddress address = (InetSocketAddress) endpoint;
+                connection.route = routeKey(address.getHostString(),
+                                            address.getPort());
+            }
+            super.connect(endpoint, timeout);
+            connection.lastActive = System.currentTimeMillis();
+        }
+
+        private void start() {
+            connection.busy.incrementAndGet();
+        }
+
+        private void end() {
+            connection.busy.decrementAndGet();
+            connection.lastActive = System.currentTimeMillis();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(super.getInputStream()) {
+                public int read() throws IOException {
+                    start();
+                    try {
+                        return super.read();
+                    } finally {
+                        end();
+                    }
+                }
+
+                public int read(byte[] b, int off, int len)
+                        throws IOException {
+                    start();
+                    try {
+                        return super.read(b, off, len);
+                    } finally {
+                        end();
+                    }
+                }
+            };
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(super.getOutputStream()) {
+                public void write(int b) throws IOException {
+                    start();
+                    try {
+                        out.write(b);
+                    } finally {
+                        end();
+                    }
+                }
+
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    start();
+                    try {
+                        out.write(b, off, len);
+                    } finally {
+                        end();
+                    }
+                }
+            };
+        }
+    }
+
+    private static class Route {
+        final String key;
+        final Semaphore permits;
+        final AtomicLong active = new AtomicLong();
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Route(String key, int maxPerRoute) {
+            this.key = key;
+            this.permits = new Semaphore(maxPerRoute, true);
+        }
+    }
+
+    /**
+     * A reserved request slot. Releasing a lease more than once has no
+     * effect.
+     */
+    public class Lease {
+        private final Route route;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(Route route) {
+            this.route = route;
+        }
+
+        public void release() {
+            if (!released.compareAndSet(false, true))
+                return;
+            route.lastUsed = System.currentTimeMillis();
+            route.active.decrementAndGet();
+            totalPermits.release();
+            route.permits.release();
+        }
+    }
+
+    /**
+     * Point in time snapshot of pool usage.
+     */
+    public static class Stats {
+        private final long leases;
+        private final long created;
+        private final long evicted;
+        private final int open;
+        private final int active;
+        private final int routes;
+        private final long waitNanos;
+
+        Stats(long leases, long created, long evicted, int open, int active,
+              int routes, long waitNanos) {
+            this.leases = leases;
+            this.created = created;
+            this.evicted = evicted;
+            this.open = open;
+            this.active = active;
+            this.routes = routes;
+            this.waitNanos = waitNanos;
+        }
+
+        /** Total number of requests that went through the pool. */
+        public long getRequests() { return leases; }
+        /** Number of new connections (TCP connect + TLS handshake). */
+        public long getConnectionsCreated() { return created; }
+        /** Number of requests served on an existing connection. */
+        public long getConnectionsReused() {
+            return Math.max(0, leases - created);
+        }
+        /** Number of connections closed by idle eviction. */
+        public long getConnectionsEvicted() { return evicted; }
+        /** Number of connections currently open, in use or idle. */
+        public int getOpenConnections() { return open; }
+        /** Number of requests currently in flight. */
+        public int getActiveRequests() { return active; }
+        public int getRoutes() { return routes; }
+        /** Total time spent waiting for a slot, in milliseconds. */
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        }
+
+        public String toString() {
+            return "requests=" + leases + " created=" + created
+                   + " reused=" + getConnectionsReused()
+                   + " evicted=" + evicted + " open=" + open
+                   + " active=" + active + " routes=" + routes
+                   + " waitMillis=" + getWaitMillis();
+        }
+    }
+
+    /**
+     * Socket factory that reports the connections it creates to the pool.
+     */
+    public static class PooledSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final ConnectionPool pool;
+
+        PooledSocketFactory(SSLSocketFactory delegate, ConnectionPool pool) {
+            this.delegate = delegate;
+            this.pool = pool;
+        }
+
+        boolean wraps(SSLSocketFactory factory, ConnectionPool pool) {
+            return this.delegate == factory && this.pool == pool;
+        }
+
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        public Socket createSocket() throws IOException {
+            // HttpsURLConnection connects this socket itself and then
+            // layers TLS over it, see TrackedSocket.
+            TrackedSocket socket = new TrackedSocket();
+            pool.connectionCreated(socket, socket.connection);
+            return socket;
+        }
+
+        public Socket createSocket(Socket s, String host, int port,
+                                   boolean autoClose) throws IOException {
+            Socket layered = delegate.createSocket(s, host, port, autoClose);
+            if (s instanceof TrackedSocket) {
+                // Already tracked; the URL's host names the route.
+                ((TrackedSocket) s).connection.route = routeKey(host, port);
+                return layered;
+            }
+            return track(layered, routeKey(host, port));
+        }
+
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(delegate.createSocket(host, port),
+                         routeKey(host, port));
+        }
+
+        public Socket createSocket(String host, int port,
+                                   InetAddress localHost, int localPort)
+                throws IOException {
+            return track(delegate.createSocket(host, port, localHost,
+                                               localPort),
+                         routeKey(host, port));
+        }
+
+        public Socket createSocket(InetAddress host, int port)
+                throws IOException {
+            return track(delegate.createSocket(host, port),
+                         routeKey(host, port));
+        }
+
+        public Socket createSocket(InetAddress address, int port,
+                                   InetAddress localAddress, int localPort)
+                throws IOException {
+            return track(delegate.createSocket(address, port, localAddress,
+                                               localPort),
+                         routeKey(address, port));
+        }
+
+        private Socket track(Socket socket, String route) {
+            pool.connectionCreated(socket, new Connection(route, false));
+            return socket;
+        }
+    }
+}
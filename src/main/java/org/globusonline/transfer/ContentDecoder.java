@@ -0,0 +1,317 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes gzip and deflate response bodies as they are read, and counts
+ * the bytes received on the wire and after decoding.
+ *
+ * Bodies are decompressed in a stream, a buffer at a time, so a large
+ * listing is never held in memory in its compressed and decompressed
+ * forms at once. Responses without a Content-Encoding are passed through
+ * and only counted.
+ */
+public class ContentDecoder {
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong compressedResponses = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLong compressedWireBytes = new AtomicLong();
+    private final AtomicLong compressedDecodedBytes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    /**
+     * Wrap a response so that its body is decoded according to its
+     * Content-Encoding.
+     */
+    public TransportResponse decode(TransportResponse response) {
+        return new DecodedResponse(response);
+    }
+
+    public Stats getStats() {
+        return new Stats(responses.get(), compressedResponses.get(),
+                         wireBytes.get(), decodedBytes.get(),
+                         compressedWireBytes.get(),
+                         compressedDecodedBytes.get(), decodeNanos.get());
+    }
+
+    private CountingStream decodeBody(String encoding, InputStream in)
+            throws IOException {
+        responses.incrementAndGet();
+        if (encoding != null)
+            encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        if (encoding == null || encoding.isEmpty()
+            || encoding.equals("identity")) {
+            CountingStream wire = new CountingStream(in, null);
+            return new CountingStream(wire, wire);
+        }
+
+        CountingStream wire = new CountingStream(in, null);
+        InputStream decoded;
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            decoded = new GZIPInputStream(wire, BUFFER_SIZE);
+        } else if (encoding.equals("deflate")) {
+            decoded = inflater(wire);
+        } else {
+            throw new IOException("Unsupported Content-Encoding: "
+                                  + encoding);
+        }
+        compressedResponses.incrementAndGet();
+        return new CountingStream(decoded, wire);
+    }
+
+    /**
+     * "deflate" is supposed to be zlib wrapped, but some servers send a
+     * raw deflate stream; tell them apart by the zlib header.
+     */
+    private static InputStream inflater(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int n = 0;
+        while (n < 2) {
+            int read = pushback.read(header, n, 2 - n);
+            if (read < 0)
+                break;
+            n += read;
+        }
+        if (n > 0)
+            pushback.unread(header, 0, n);
+        int cmf = header[0] & 0xff;
+        int flg = header[1] & 0xff;
+        boolean zlib = n == 2 && (cmf & 0x0f) == 8
+                       && ((cmf << 8) | flg) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib),
+                                       BUFFER_SIZE);
+    }
+
+    /**
+     * Counts the bytes read through it. The outer stream of a pair also
+     * times the reads, which includes decompression, and publishes the
+     * totals once, at the end of the body or when it is closed.
+     */
+    private class CountingStream extends FilterInputStream {
+        private final CountingStream wire;
+        private long count;
+        private long nanos;
+        private boolean published;
+
+        CountingStream(InputStream in, CountingStream wire) {
+            super(in);
+            this.wire = wire;
+        }
+
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            nanos += System.nanoTime() - start;
+            if (b >= 0)
+                count++;
+            else
+                publish();
+            return b;
+        }
+
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+            long start = System.nanoTime();
+            int n = super.read(buffer, offset, length);
+            nanos += System.nanoTime() - start;
+            if (n > 0)
+                count += n;
+            else if (n < 0)
+                publish();
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        public void close() throws IOException {
+            publish();
+            super.close();
+        }
+
+        private void publish() {
+            if (wire == null || published)
+                return;
+            published = true;
+            wireBytes.addAndGet(wire.count);
+            decodedBytes.addAndGet(count);
+            if (wire != this.in) {
+                compressedWireBytes.addAndGet(wire.count);
+                compressedDecodedBytes.addAndGet(count);
+                decodeNanos.addAndGet(nanos);
+            }
+        }
+    }
+
+    private class DecodedResponse implements TransportResponse {
+        private final TransportResponse response;
+        private CountingStream body;
+
+        DecodedResponse(TransportResponse response) {
+            this.response = response;
+        }
+
+        public int getStatusCode() {
+            return response.getStatusCode();
+        }
+
+        public String getStatusMessage() {
+            return response.getStatusMessage();
+        }
+
+        public String getHeader(String name) {
+            return response.getHeader(name);
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return response.getHeaders();
+        }
+
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = decodeBody(response.getHeader("Content-Encoding"),
+                                  response.getBody());
+            }
+            return body;
+        }
+
+        /**
+         * The parser stops at the end of the document, before the gzip
+         * trailer, so the raw body is left for the response to drain and
+         * the connection can be reused. The decoder is closed afterwards
+         * only to free its inflater.
+         */
+        public void close() {
+            if (body != null)
+                body.publish();
+            response.close();
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // Already drained and closed.
+                }
+            }
+        }
+
+        public void abort() {
+            // Close the connection first, so closing the body doesn't
+            // drain it.
+            response.abort();
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // Already aborted.
+                }
+            }
+        }
+    }
+
+    public static class Stats {
+        private final long responses;
+        private final long compressedResponses;
+        private final long wireBytes;
+        private final long decodedBytes;
+        private final long compressedWireBytes;
+        private final long compressedDecodedBytes;
+        private final long decodeNanos;
+
+        Stats(long responses, long compressedResponses, long wireBytes,
+              long decodedBytes, long compressedWireBytes,
+              long compressedDecodedBytes, long decodeNanos) {
+            this.responses = responses;
+            this.compressedResponses = compressedResponses;
+            this.wireBytes = wireBytes;
+            this.decodedBytes = decodedBytes;
+            this.compressedWireBytes = compressedWireBytes;
+            this.compressedDecodedBytes = compressedDecodedBytes;
+            this.decodeNanos = decodeNanos;
+        }
+
+        /** Number of response bodies read. */
+        public long getResponses() { return responses; }
+        /** Number of response bodies that were compressed. */
+        public long getCompressedResponses() { return compressedResponses; }
+        /** Body bytes received from the server, compressed or not. */
+        public long getWireBytes() { return wireBytes; }
+        /** Body bytes after decompression. */
+        public long getDecodedBytes() { return decodedBytes; }
+        /** Bytes that compression kept off the wire. */
+        public long getBytesSaved() {
+            return compressedDecodedBytes - compressedWireBytes;
+        }
+        /** Decompressed size over compressed size, for compressed bodies. */
+        public double getCompressionRatio() {
+            if (compressedWireBytes == 0)
+                return 0;
+            return (double) compressedDecodedBytes / compressedWireBytes;
+        }
+        /** Time spent reading compressed bodies, in milliseconds. */
+        public long getDecodeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(decodeNanos);
+        }
+        /**
+         * Decompressed megabytes per second of reading compressed bodies.
+         * This includes waiting for the network, so it is a lower bound
+         * on the decompression speed.
+         */
+        public double getDecodeThroughput() {
+            if (decodeNanos == 0)
+                return 0;
+            return compressedDecodedBytes / 1e6 / (decodeNanos / 1e9);
+        }
+
+        public String toString() {
+            return "responses=" + responses
+                   + " compressed=" + compressedResponses
+                   + " wireBytes=" + wireBytes
+                   + " decodedBytes=" + decodedBytes
+                   + " saved=" + getBytesSaved()
+                   + " ratio=" + String.format("%.2f", getCompressionRatio())
+                   + " decodeMBps="
+                   + String.format("%.1f", getDecodeThroughput());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Trust and key managers parsed from PEM files, shared by all clients in
+ * the process, so that creating a client from credentials that were
+ * already read costs a few file system lookups rather than parsing the
+ * files and building key stores again.
+ *
+ * Entries are keyed by the canonical path, modification time and size of
+ * the files, so a file that changes on disk is read again by the next
+ * client created from it. The manager arrays are shared between clients
+ * and must not be modified.
+ */
+public class CredentialCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static final CredentialCache DEFAULT = new CredentialCache();
+
+    /**
+     * Reads the credentials of a cache miss.
+     */
+    interface Loader<T> {
+        T load() throws GeneralSecurityException, IOException;
+    }
+
+    // Only used when a client is created, never per request, so a
+    // synchronized LRU map is good enough. Files are parsed outside the
+    // lock.
+    private final Map<String, Object> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CredentialCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries  maximum number of parsed credential sets to keep;
+     *                    the least recently used is dropped beyond that.
+     */
+    public CredentialCache(final int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maxEntries must be >= 1");
+        this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                                            Map.Entry<String, Object> e) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The cache used by all clients.
+     */
+    public static CredentialCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Trust managers for the certificates in a PEM file.
+     */
+    public TrustManager[] getTrustManagers(final String trustedCAFile)
+            throws GeneralSecurityException, IOException {
+        return get("trust " + fileKey(trustedCAFile),
+                   () -> PemFile.createTrustManagers(trustedCAFile));
+    }
+
+    /**
+     * Key managers for a PEM certificate (chain) and key.
+     */
+    public KeyManager[] getKeyManagers(String certFile, String keyFile)
+            throws GeneralSecurityException, IOException {
+        return getKeyManagers(certFile, keyFile, null);
+    }
+
+    /**
+     * Key managers for a PEM certificate (chain) and a key that may be
+     * encrypted.
+     *
+     * @param password  password of the key, or null if it isn't
+     *                  encrypted. Only a hash of it is kept, in the key
+     *                  of the entry, so a wrong password doesn't get the
+     *                  key managers another client loaded.
+     */
+    public KeyManager[] getKeyManagers(final String certFile,
+                                       final String keyFile,
+                                       final char[] password)
+            throws GeneralSecurityException, IOException {
+        String key = "key " + fileKey(certFile) + " " + fileKey(keyFile);
+        if (password != null)
+            key += " " + Arrays.hashCode(password);
+        return get(key, () -> PemFile.createKeyManagers(certFile, keyFile,
+                                                        password));
+    }
+
+    /**
+     * Get an entry, loading it on a miss. Two clients missing the same
+     * entry at once may both load it; the first one stored wins.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String key, Loader<T> loader)
+            throws GeneralSecurityException, IOException {
+        synchronized (entries) {
+            Object value = entries.get(key);
+            if (value != null) {
+                hits.incrementAndGet();
+                return (T) value;
+            }
+        }
+        misses.incrementAndGet();
+        T loaded = loader.load();
+        synchronized (entries) {
+            Object value = entries.get(key);
+            if (value != null)
+                return (T) value;
+            entries.put(key, loaded);
+            return loaded;
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Identify a file by its canonical path, modification time and size.
+     * Names that aren't files, such as resource URLs, are used as is.
+     */
+    static String fileKey(String path) {
+        if (path == null)
+            return "";
+        File f = new File(path);
+        if (!f.isFile())
+            return path;
+        String canonical;
+        try {
+            canonical = f.getCanonicalPath();
+        } catch (IOException e) {
+            canonical = f.getAbsolutePath();
+        }
+        return canonical + ":" + f.lastModified() + ":" + f.length();
+    }
+
+    public Stats getStats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new Stats(hits.get(), misses.get(), size);
+    }
+
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final int entries;
+
+        Stats(long hits, long misses, int entries) {
+            this.hits = hits;
+            this.misses = misses;
+            this.entries = entries;
+        }
+
+        /** Number of clients given already parsed credentials. */
+        public long getHits() { return hits; }
+        /** Number of times files were parsed. */
+        public long getMisses() { return misses; }
+        public int getEntries() { return entries; }
+
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses
+                   + " entries=" + entries;
+        }
+    }
+}
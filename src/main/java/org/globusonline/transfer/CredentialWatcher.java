@@ -0,0 +1,286 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.ref.WeakReference;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches credential files and tells their clients when they change, so
+ * that rotated proxy certificates are picked up without creating a new
+ * client.
+ *
+ * One WatchService and one daemon thread serve all clients. Any event in
+ * a watched directory makes the watcher compare the path, modification
+ * time and size of the files registered there, which also catches files
+ * replaced by renaming or by swapping a symlink. Changes are reported
+ * after a quiet period, so a certificate and key written one after the
+ * other are reloaded together; reloads run on the watcher's thread, never
+ * on a request thread.
+ *
+ * Clients are held weakly: a client that is no longer used stops being
+ * watched once it is garbage collected.
+ */
+class CredentialWatcher {
+    static final long DEFAULT_QUIET_PERIOD = 1000; // milliseconds
+
+    private static final Logger logger =
+                Logger.getLogger(CredentialWatcher.class.getName());
+
+    private static CredentialWatcher instance;
+
+    /**
+     * Called with the client when its files changed.
+     */
+    interface Listener {
+        void filesChanged(BCTransferAPIClient client) throws Exception;
+    }
+
+    private final WatchService watchService;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Path, Directory> directories =
+                                            new HashMap<Path, Directory>();
+    private final List<Registration> registrations =
+                            new CopyOnWriteArrayList<Registration>();
+    private volatile long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+    private CredentialWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "credential-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread thread = new Thread(this::run, "credential-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static synchronized CredentialWatcher getInstance() throws IOException {
+        if (instance == null)
+            instance = new CredentialWatcher();
+        return instance;
+    }
+
+    void setQuietPeriod(long milliseconds) {
+        this.quietPeriod = milliseconds;
+    }
+
+    /**
+     * Watch the given files, ignoring names that aren't files, such as
+     * resource URLs.
+     */
+    Registration watch(BCTransferAPIClient client, List<String> files,
+                       Listener listener) throws IOException {
+        List<File> watched = new ArrayList<File>();
+        List<Path> dirs = new ArrayList<Path>();
+        for (String name : files) {
+            if (name == null)
+                continue;
+            File f = new File(name);
+            if (!f.isFile())
+                continue;
+            watched.add(f.getAbsoluteFile());
+            Path dir = f.getAbsoluteFile().toPath().getParent();
+            if (!dirs.contains(dir))
+                dirs.add(dir);
+        }
+        synchronized (directories) {
+            for (int i = 0; i < dirs.size(); i++) {
+                try {
+                    acquire(dirs.get(i));
+                } catch (IOException e) {
+                    release(dirs.subList(0, i));
+                    throw e;
+                }
+            }
+        }
+        Registration registration = new Registration(client, watched, dirs,
+                                                     listener);
+        if (!watched.isEmpty())
+            registrations.add(registration);
+        return registration;
+    }
+
+    /** Number of directories being watched. */
+    int getDirectoryCount() {
+        synchronized (directories) {
+            return directories.size();
+        }
+    }
+
+    // Called holding the directories lock.
+    private void acquire(Path dir) throws IOException {
+        Directory d = directories.get(dir);
+        if (d == null || !d.key.isValid()) {
+            // A key turns invalid when its directory is deleted; register
+            // the directory again, keeping the count of its watchers.
+            d = new Directory(dir.register(watchService,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY,
+                                StandardWatchEventKinds.ENTRY_DELETE));
+            Directory old = directories.put(dir, d);
+            if (old != null)
+                d.watchers = old.watchers;
+        }
+        d.watchers++;
+    }
+
+    /**
+     * Stop watching the given directories for one registration, cancelling
+     * the key of each directory no registration watches any more.
+     */
+    private void release(List<Path> dirs) {
+        synchronized (directories) {
+            for (Path dir : dirs) {
+                Directory d = directories.get(dir);
+                if (d == null || --d.watchers > 0)
+                    continue;
+                d.key.cancel();
+                directories.remove(dir);
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            key.pollEvents();
+            key.reset();
+            for (Registration registration : registrations) {
+                registration.check();
+            }
+        }
+    }
+
+    /**
+     * A watched directory and the number of registrations watching it.
+     */
+    private static class Directory {
+        final WatchKey key;
+        int watchers; // guarded by directories
+
+        Directory(WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The files of one client and the state they were last seen in.
+     */
+    class Registration {
+        private final WeakReference<BCTransferAPIClient> client;
+        private final List<File> files;
+        private final List<Path> dirs;
+        private final Listener listener;
+        private String state;
+        private ScheduledFuture<?> pending;
+        private boolean closed;
+
+        Registration(BCTransferAPIClient client, List<File> files,
+                     List<Path> dirs, Listener listener) {
+            this.client = new WeakReference<BCTransferAPIClient>(client);
+            this.files = files;
+            this.dirs = dirs;
+            this.listener = listener;
+            this.state = state();
+        }
+
+        private String state() {
+            StringBuilder b = new StringBuilder();
+            for (File f : files) {
+                b.append(CredentialCache.fileKey(f.getPath())).append('|');
+            }
+            return b.toString();
+        }
+
+        void check() {
+            if (client.get() == null) {
+                close();
+                return;
+            }
+            // Look at the files outside the lock.
+            String current = state();
+            synchronized (this) {
+                if (current.equals(this.state))
+                    return;
+                // Restart the quiet period on every change.
+                if (pending != null)
+                    pending.cancel(false);
+                pending = scheduler.schedule(this::fire, quietPeriod,
+                                             TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void fire() {
+            BCTransferAPIClient c = client.get();
+            if (c == null) {
+                close();
+                return;
+            }
+            String current = state();
+            synchronized (this) {
+                this.state = current;
+            }
+            try {
+                listener.filesChanged(c);
+            } catch (Exception e) {
+                // Keep the current credentials; a later change retries.
+                logger.log(Level.WARNING,
+                           "Reloading credentials failed: " + files, e);
+            }
+        }
+
+        void close() {
+            registrations.remove(this);
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                if (pending != null)
+                    pending.cancel(false);
+            }
+            release(dirs);
+        }
+    }
+}
@@ -9,7 +9,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
@@ -67,8 +66,6 @@ public class ExampleParallel {
                                          cafile, certfile, keyfile, baseUrl);
             System.out.println("base url: " + c.getBaseUrl());
             
-            c.setUseMultiThreaded(true);
-            
             ExampleParallel e = new ExampleParallel(c, endpoint, path);
             e.run();
         } catch (Exception e) {
@@ -83,7 +80,15 @@ public class ExampleParallel {
         int threads = 20;
 		Long start = new Date().getTime();
         
-        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Each listing blocks its thread while waiting on the network;
+        // virtual threads make that cheap, where the JVM supports them.
+        ExecutorFactory factory = ExecutorFactory.isVirtualThreadsSupported()
+                                  ? ExecutorFactory.virtualThreads()
+                                  : ExecutorFactory.fixedThreads(threads);
+        ExecutorService executor = factory.newExecutor("ls");
+        // The threads only bound the work queued; how many listings are
+        // in flight at once adapts to the latency of the service.
+        client.setConcurrencyLimiter(new ConcurrencyLimiter());
         for ( int i=0; i<threads; i++) {
         	
         	final int run = i;
@@ -130,6 +135,8 @@ public class ExampleParallel {
 		Long end = new Date().getTime();
 		
 		System.out.println("TIME: "+(end-start)/1000);
+		System.out.println("Concurrency: "
+		                   + client.getConcurrencyLimiter().getStats());
 
     }
 
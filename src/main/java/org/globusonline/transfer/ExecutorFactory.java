@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors a client runs its work on, see
+ * {@link BaseTransferAPIClient#setExecutorFactory}.
+ *
+ * On Java 21 and later, {@link #virtualThreads()} runs every task on its
+ * own virtual thread. The request path takes monitors only for short
+ * bookkeeping, never while it waits on the network, the disk or another
+ * request; waits for a limit, a turn or a connection go through
+ * java.util.concurrent. So a blocking call such as getResult unmounts
+ * from its carrier thread while it waits, and tens of thousands of calls
+ * can be in flight at once. The {@link ConnectionPool} limits still apply to
+ * synchronous requests; raise them, or enable HTTP/2, for that kind of
+ * fan-out.
+ */
+public interface ExecutorFactory {
+    /**
+     * @param name  prefix for the names of the threads, where the
+     *              executor names its threads.
+     */
+    ExecutorService newExecutor(String name);
+
+    /**
+     * One new virtual thread per task.
+     *
+     * @throws UnsupportedOperationException if the JVM doesn't support
+     *         virtual threads (before Java 21).
+     */
+    public static ExecutorFactory virtualThreads() {
+        final Method method = virtualThreadFactoryMethod();
+        if (method == null)
+            throw new UnsupportedOperationException(
+                        "virtual threads require Java 21 or later");
+        return new ExecutorFactory() {
+            public ExecutorService newExecutor(String name) {
+                try {
+                    return (ExecutorService) method.invoke(null);
+                } catch (Exception e) {
+                    throw new IllegalStateException(
+                            "Can't create virtual thread executor", e);
+                }
+            }
+        };
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return virtualThreadFactoryMethod() != null;
+    }
+
+    /**
+     * A fixed pool of daemon platform threads.
+     */
+    public static ExecutorFactory fixedThreads(final int threads) {
+        return new ExecutorFactory() {
+            public ExecutorService newExecutor(String name) {
+                return Executors.newFixedThreadPool(threads,
+                                                    daemonThreads(name));
+            }
+        };
+    }
+
+    /**
+     * A cached pool of daemon platform threads, growing as needed.
+     */
+    public static ExecutorFactory cachedThreads() {
+        return new ExecutorFactory() {
+            public ExecutorService newExecutor(String name) {
+                return Executors.newCachedThreadPool(daemonThreads(name));
+            }
+        };
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Looked up reflectively, since the client is built for Java 11.
+     */
+    private static Method virtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod(
+                                    "newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -1,32 +1,226 @@
 package org.globusonline.transfer;
 
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import javax.net.ssl.HttpsURLConnection;
 
 /**
  * An authenticator to transfer that uses a Nexus Goauth token.
  *
+ * The Authorization header is built once per token and published with a
+ * single volatile write, so request threads read it without locking and
+ * always see a whole token. Given a {@link TokenSource}, the authenticator
+ * fetches a new token in the background before the current one expires;
+ * requests keep using the current token until the new one is published.
+ *
  * @author jbryan
  *
  */
 public class GoauthAuthenticator implements Authenticator {
+	/** Default time before expiry to refresh the token, in milliseconds. */
+	public static final long DEFAULT_REFRESH_MARGIN = 5 * 60 * 1000;
+	private static final long MIN_RETRY_DELAY = 1000;
+
+	private static final Logger logger =
+			Logger.getLogger(GoauthAuthenticator.class.getName());
+
+	/**
+	 * Where refreshed tokens come from, such as {@link NexusTokenSource}.
+	 */
+	public interface TokenSource {
+		/**
+		 * Fetch a new token. Called from a background thread.
+		 */
+		Token fetchToken() throws IOException;
+	}
+
+	/**
+	 * A token and when it expires.
+	 */
+	public static class Token {
+		private final String value;
+		private final long expiresAt;
+
+		/**
+		 * @param value  the access token.
+		 * @param expiresAt  expiry time in milliseconds since the epoch,
+		 *                   or Long.MAX_VALUE if it doesn't expire.
+		 */
+		public Token(String value, long expiresAt) {
+			if (value == null)
+				throw new IllegalArgumentException("token is required");
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		public String getValue() { return this.value; }
+		public long getExpiresAt() { return this.expiresAt; }
+	}
 
-	private String token;
+	/**
+	 * The published token and its header, never modified.
+	 */
+	private static class Credential {
+		final Token token;
+		final String header;
+
+		Credential(Token token) {
+			this.token = token;
+			this.header = "Globus-Goauthtoken " + token.getValue();
+		}
+	}
+
+	private volatile Credential credential;
+	private final TokenSource source;
+	private final long refreshMargin;
+	private ScheduledFuture<?> refresh; // guarded by this
+	private boolean closed; // guarded by this
+	private final AtomicLong fetches = new AtomicLong();
+	private final AtomicLong fetchFailures = new AtomicLong();
 
 	public GoauthAuthenticator(String token) {
+		this.source = null;
+		this.refreshMargin = DEFAULT_REFRESH_MARGIN;
 		this.setToken(token);
 	}
 
+	public GoauthAuthenticator(TokenSource source) throws IOException {
+		this(source, DEFAULT_REFRESH_MARGIN);
+	}
+
+	/**
+	 * Fetch a token from the source now, and refresh it in the
+	 * background refreshMargin milliseconds before it expires, or after
+	 * half its lifetime if that is sooner. Failed refreshes are retried
+	 * with backoff while the current token is still in use.
+	 */
+	public GoauthAuthenticator(TokenSource source, long refreshMargin)
+			throws IOException {
+		if (source == null)
+			throw new IllegalArgumentException("source is required");
+		this.source = source;
+		this.refreshMargin = refreshMargin;
+		publish(source.fetchToken(), MIN_RETRY_DELAY);
+	}
+
 	public void authenticateConnection(HttpsURLConnection c) {
-		String auth_string = "Globus-Goauthtoken " + this.token;
-		c.setRequestProperty("Authorization", auth_string);
+		c.setRequestProperty("Authorization", this.credential.header);
+	}
+
+	public void authenticateRequest(TransportRequest request) {
+		request.setHeader("Authorization", this.credential.header);
 	}
 
 	public String getToken() {
-		return token;
+		return this.credential.token.getValue();
+	}
+
+	/**
+	 * When the current token expires, in milliseconds since the epoch, or
+	 * Long.MAX_VALUE if it doesn't.
+	 */
+	public long getExpiresAt() {
+		return this.credential.token.getExpiresAt();
 	}
 
+	/**
+	 * Replace the token. Requests already in flight keep the token they
+	 * were sent with.
+	 */
 	public void setToken(String token) {
-		this.token = token;
+		this.credential = new Credential(new Token(token, Long.MAX_VALUE));
+	}
+
+	/**
+	 * Fetch a new token from the source now, rather than waiting for the
+	 * scheduled refresh.
+	 */
+	public void refresh() throws IOException {
+		if (this.source == null)
+			throw new IllegalStateException("no token source");
+		publish(this.source.fetchToken(), MIN_RETRY_DELAY);
+	}
+
+	/** Number of tokens fetched from the source. */
+	public long getFetchCount() { return this.fetches.get(); }
+	/** Number of background refreshes that failed and were retried. */
+	public long getFetchFailures() { return this.fetchFailures.get(); }
+
+	/**
+	 * Stop refreshing the token in the background.
+	 */
+	public synchronized void close() {
+		this.closed = true;
+		if (this.refresh != null)
+			this.refresh.cancel(false);
 	}
 
+	private void publish(Token token, long retryDelay) {
+		this.credential = new Credential(token);
+		this.fetches.incrementAndGet();
+		if (token.getExpiresAt() == Long.MAX_VALUE)
+			return;
+		long lifetime = token.getExpiresAt() - System.currentTimeMillis();
+		long delay = Math.max(MIN_RETRY_DELAY,
+		                      Math.min(lifetime - this.refreshMargin,
+		                               lifetime / 2));
+		schedule(delay, retryDelay);
+	}
+
+	private synchronized void schedule(long delay, final long retryDelay) {
+		if (this.closed)
+			return;
+		if (this.refresh != null)
+			this.refresh.cancel(false);
+		this.refresh = scheduler().schedule(() -> backgroundRefresh(retryDelay),
+		                                    delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void backgroundRefresh(long retryDelay) {
+		Token token;
+		try {
+			token = this.source.fetchToken();
+		} catch (IOException | RuntimeException e) {
+			this.fetchFailures.incrementAndGet();
+			logger.log(Level.WARNING, "Goauth token refresh failed", e);
+			// Keep trying, no later than the current token's expiry. Once
+			// it has expired, keep backing off, up to the refresh margin.
+			long left = getExpiresAt() - System.currentTimeMillis();
+			long delay = Math.min(retryDelay,
+			                      left > 0 ? left : this.refreshMargin);
+			schedule(Math.max(MIN_RETRY_DELAY, delay),
+			         Math.min(retryDelay * 2, this.refreshMargin));
+			return;
+		}
+		publish(token, MIN_RETRY_DELAY);
+	}
+
+	private static volatile ScheduledExecutorService scheduler;
+
+	/**
+	 * One daemon thread refreshes the tokens of all authenticators;
+	 * refreshes are rare and short.
+	 */
+	private static ScheduledExecutorService scheduler() {
+		ScheduledExecutorService s = scheduler;
+		if (s != null)
+			return s;
+		synchronized (GoauthAuthenticator.class) {
+			if (scheduler == null) {
+				scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "goauth-token-refresh");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			return scheduler;
+		}
+	}
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When to send a second, hedge, copy of a slow GET request.
+ *
+ * The hedge delay adapts to the observed latency: it is the given
+ * percentile of the latency of recent requests, by default the 95th, so
+ * that only the slowest few percent of requests are hedged. Until enough
+ * latencies have been recorded the initial delay is used. The delay is
+ * never below the minimum delay.
+ *
+ * Hedges are limited by a budget, like {@link RetryPolicy}'s: every
+ * request adds budgetRatio of a hedge to it, up to a maximum, and every
+ * hedge takes one away, which caps the extra load at budgetRatio of the
+ * requests.
+ */
+public class HedgingPolicy {
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final long DEFAULT_MIN_DELAY = 10; // milliseconds
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.05;
+    public static final int DEFAULT_BUDGET_HEDGES = 10;
+
+    private static final int SAMPLES = 512;
+    private static final int MIN_SAMPLES = 32;
+    // The delay is recomputed every this many samples, not every request.
+    private static final int RECOMPUTE_EVERY = 32;
+    private static final long HEDGE_COST = 1000;
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long budgetDeposit;
+    private final long budgetMax;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicInteger sampleCount = new AtomicInteger();
+    private volatile long delayNanos;
+
+    private final AtomicLong budget;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    public HedgingPolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_MIN_DELAY, DEFAULT_INITIAL_DELAY,
+             DEFAULT_BUDGET_RATIO, DEFAULT_BUDGET_HEDGES);
+    }
+
+    /**
+     * @param percentile  latency percentile to hedge at, between 0 and 1.
+     * @param minDelay  minimum hedge delay, in milliseconds.
+     * @param initialDelay  hedge delay until enough latencies have been
+     *                      recorded, in milliseconds.
+     * @param budgetRatio  hedges earned by each request.
+     * @param budgetHedges  hedges the budget starts with, which is also
+     *                      the most it can hold.
+     */
+    public HedgingPolicy(double percentile, long minDelay, long initialDelay,
+                         double budgetRatio, int budgetHedges) {
+        if (percentile <= 0 || percentile >= 1)
+            throw new IllegalArgumentException(
+                                    "percentile must be between 0 and 1");
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelay);
+        this.delayNanos = Math.max(this.minDelayNanos,
+                            TimeUnit.MILLISECONDS.toNanos(initialDelay));
+        this.budgetDeposit = Math.round(budgetRatio * HEDGE_COST);
+        this.budgetMax = budgetHedges * HEDGE_COST;
+        this.budget = new AtomicLong(this.budgetMax);
+    }
+
+    /**
+     * The current hedge delay, in nanoseconds.
+     */
+    long delayNanos() {
+        return this.delayNanos;
+    }
+
+    void requestStarted() {
+        requests.incrementAndGet();
+        while (true) {
+            long current = budget.get();
+            long next = Math.min(budgetMax, current + budgetDeposit);
+            if (next == current || budget.compareAndSet(current, next))
+                return;
+        }
+    }
+
+    /**
+     * Take a hedge from the budget.
+     *
+     * @return false if the budget is empty.
+     */
+    boolean tryHedge() {
+        while (true) {
+            long current = budget.get();
+            if (current < HEDGE_COST) {
+                budgetExhausted.incrementAndGet();
+                return false;
+            }
+            if (budget.compareAndSet(current, current - HEDGE_COST)) {
+                hedges.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    void hedgeWon() {
+        hedgeWins.incrementAndGet();
+    }
+
+    /**
+     * Record the latency of a response. Samples are kept in a ring that
+     * concurrent writers may race on, which only loses a sample.
+     */
+    void record(long nanos) {
+        int n = sampleCount.getAndIncrement() & Integer.MAX_VALUE;
+        samples.set(n & (SAMPLES - 1), nanos);
+        if (n + 1 >= MIN_SAMPLES && (n + 1) % RECOMPUTE_EVERY == 0)
+            recompute(Math.min(n + 1, SAMPLES));
+    }
+
+    private void recompute(int count) {
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++)
+            sorted[i] = samples.get(i);
+        Arrays.sort(sorted);
+        int index = Math.min(count - 1, (int) (percentile * count));
+        this.delayNanos = Math.max(minDelayNanos, sorted[index]);
+    }
+
+    public Stats getStats() {
+        return new Stats(requests.get(), hedges.get(), hedgeWins.get(),
+                         budgetExhausted.get(), delayNanos);
+    }
+
+    public static class Stats {
+        private final long requests;
+        private final long hedges;
+        private final long hedgeWins;
+        private final long budgetExhausted;
+        private final long delayNanos;
+
+        Stats(long requests, long hedges, long hedgeWins,
+              long budgetExhausted, long delayNanos) {
+            this.requests = requests;
+            this.hedges = hedges;
+            this.hedgeWins = hedgeWins;
+            this.budgetExhausted = budgetExhausted;
+            this.delayNanos = delayNanos;
+        }
+
+        public long getRequests() { return requests; }
+        /** Number of hedge requests sent. */
+        public long getHedges() { return hedges; }
+        /** Number of requests answered by the hedge rather than the first. */
+        public long getHedgeWins() { return hedgeWins; }
+        /** Number of hedges not sent because the budget was empty. */
+        public long getBudgetExhausted() { return budgetExhausted; }
+        /** Current hedge delay, in milliseconds. */
+        public double getDelayMillis() { return delayNanos / 1e6; }
+
+        public String toString() {
+            return "requests=" + requests + " hedges=" + hedges
+                   + " hedgeWins=" + hedgeWins
+                   + " budgetExhausted=" + budgetExhausted
+                   + " delayMillis="
+                   + String.format("%.1f", getDelayMillis());
+        }
+    }
+}
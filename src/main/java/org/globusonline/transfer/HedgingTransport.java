@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport that sends a second copy of an idempotent request if the
+ * first hasn't been answered within the {@link HedgingPolicy}'s delay.
+ * The first successful response wins and the other attempt is cancelled;
+ * a response that arrives anyway is aborted, closing its connection
+ * rather than reading its body.
+ *
+ * It should wrap the transport directly, so cancelling an attempt reaches
+ * the transport. {@link HttpClientTransport} aborts the exchange on JDK
+ * 16 and later; on JDK 11 the losing attempt runs until its headers
+ * arrive and is aborted then. {@link URLConnectionTransport} holds a
+ * thread until the headers arrive, then disconnects. Requests that aren't
+ * idempotent are passed through.
+ *
+ * A first attempt cancelled because the hedge won is recorded in the
+ * policy's latencies as taking at least the hedge delay, so that slow
+ * requests aren't left out of the percentile.
+ */
+public class HedgingTransport implements Transport {
+    private final Transport delegate;
+    private final HedgingPolicy policy;
+
+    public HedgingTransport(Transport delegate, HedgingPolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+
+    public Transport getDelegate() { return this.delegate; }
+    public HedgingPolicy getPolicy() { return this.policy; }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        if (!request.isIdempotent())
+            return delegate.execute(request);
+        CompletableFuture<TransportResponse> result = executeAsync(request);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for "
+                                             + request.getURI());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    public CompletableFuture<TransportResponse> executeAsync(
+                                        final TransportRequest request) {
+        if (!request.isIdempotent())
+            return delegate.executeAsync(request);
+        policy.requestStarted();
+        final CompletableFuture<TransportResponse> result =
+                                new CompletableFuture<TransportResponse>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicBoolean hedged = new AtomicBoolean();
+        final CompletableFuture<TransportResponse> first =
+                                        attempt(request, result, pending,
+                                                hedged, false);
+
+        CompletableFuture.delayedExecutor(policy.delayNanos(),
+                                          TimeUnit.NANOSECONDS).execute(() -> {
+            if (result.isDone() || !policy.tryHedge())
+                return;
+            pending.incrementAndGet();
+            hedged.set(true);
+            final CompletableFuture<TransportResponse> second =
+                                        attempt(request, result, pending,
+                                                hedged, true);
+            result.whenComplete((response, error) -> {
+                first.cancel(true);
+                second.cancel(true);
+            });
+        });
+        result.whenComplete((response, error) -> {
+            // Also cancels the first attempt when the caller gives up.
+            first.cancel(true);
+        });
+        return result;
+    }
+
+    private CompletableFuture<TransportResponse> attempt(
+                        TransportRequest request,
+                        final CompletableFuture<TransportResponse> result,
+                        final AtomicInteger pending,
+                        final AtomicBoolean hedged, final boolean hedge) {
+        final long start = System.nanoTime();
+        CompletableFuture<TransportResponse> attempt =
+                                            delegate.executeAsync(request);
+        attempt.whenComplete((response, error) -> {
+            if (error instanceof CancellationException) {
+                // Only the first attempt stands for the request's latency;
+                // it took at least the delay, or it wouldn't have been
+                // hedged.
+                if (!hedge && hedged.get())
+                    policy.record(Math.max(System.nanoTime() - start,
+                                           policy.delayNanos()));
+                return;
+            }
+            if (response != null) {
+                policy.record(System.nanoTime() - start);
+                // A server error is only the answer if the other attempt
+                // doesn't do better.
+                boolean good = response.getStatusCode() < 500;
+                if (good || pending.decrementAndGet() == 0) {
+                    if (result.complete(response)) {
+                        if (hedge)
+                            policy.hedgeWon();
+                    } else {
+                        // The other attempt won; don't read this body.
+                        response.abort();
+                    }
+                } else {
+                    response.close();
+                }
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(unwrap(error));
+            }
+        });
+        return attempt;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null)
+            return error.getCause();
+        return error;
+    }
+}
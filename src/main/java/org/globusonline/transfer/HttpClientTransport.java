@@ -0,0 +1,402 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import java.time.Duration;
+
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Non-blocking transport built on the JDK HTTP client (java.net.http).
+ *
+ * Requests are written and responses read by the HTTP client's selector,
+ * so no thread is held while a request is in flight; thousands of
+ * outstanding requests only cost their buffers. The HTTP client keeps
+ * its own pool of persistent connections, separate from
+ * {@link ConnectionPool}.
+ *
+ * With HTTP/2 enabled, the protocol is negotiated with ALPN during the
+ * TLS handshake and concurrent requests are multiplexed over a single
+ * connection per host; servers that don't offer h2 are spoken to with
+ * HTTP/1.1 as before. {@link #getStats()} shows how many connections were
+ * opened and which protocol the responses came back with.
+ */
+public class HttpClientTransport implements Transport {
+    private final HttpClient client;
+    private final SSLContext sslContext;
+    private final int connectTimeout;
+    private final boolean http2;
+    private final Executor executor;
+
+    // Cancelling a sendAsync future only aborts the exchange from JDK 16.
+    private static final boolean CANCEL_ABORTS_EXCHANGE =
+                                    Runtime.version().feature() >= 16;
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong http2Responses = new AtomicLong();
+    private final AtomicLong http11Responses = new AtomicLong();
+
+    public HttpClientTransport(SSLContext sslContext, int connectTimeout) {
+        this(sslContext, connectTimeout, false, null);
+    }
+
+    /**
+     * @param sslContext  context providing the client credentials and the
+     *                    trusted CAs.
+     * @param connectTimeout  connect timeout in milliseconds.
+     * @param http2  offer HTTP/2, falling back to HTTP/1.1 if the server
+     *               doesn't accept it.
+     * @param executor  runs the HTTP client's tasks and completes the
+     *                  returned futures, or null for the client's default.
+     */
+    public HttpClientTransport(SSLContext sslContext, int connectTimeout,
+                               boolean http2, Executor executor) {
+        this.sslContext = sslContext;
+        this.connectTimeout = connectTimeout;
+        this.http2 = http2;
+        this.executor = executor;
+        HttpClient.Version version = http2 ? HttpClient.Version.HTTP_2
+                                           : HttpClient.Version.HTTP_1_1;
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                            .sslContext(new CountingSSLContext(sslContext))
+                            .connectTimeout(Duration.ofMillis(connectTimeout))
+                            .followRedirects(HttpClient.Redirect.NEVER)
+                            .version(version);
+        if (executor != null)
+            builder.executor(executor);
+        this.client = builder.build();
+    }
+
+    /**
+     * Send a request and complete with the response once its headers have
+     * arrived; the body is streamed as the caller reads it. The future is
+     * completed on the executor. Cancelling the future aborts the exchange
+     * on JDK 16 and later; on earlier releases the exchange runs until the
+     * headers arrive, and the response is then discarded unread.
+     */
+    public CompletableFuture<TransportResponse> executeAsync(
+                                                TransportRequest request) {
+        HttpRequest httpRequest;
+        try {
+            httpRequest = buildRequest(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        final CompletableFuture<HttpResponse<InputStream>> send =
+            client.sendAsync(httpRequest,
+                             HttpResponse.BodyHandlers.ofInputStream());
+        CompletableFuture<TransportResponse> result =
+                                        send.thenApply(this::toResponse);
+        result.whenComplete((response, error) -> {
+            if (!result.isCancelled())
+                return;
+            // Before JDK 16, cancelling the future doesn't abort the
+            // exchange, which runs on until the headers arrive; its body
+            // is then discarded unread.
+            if (CANCEL_ABORTS_EXCHANGE)
+                send.cancel(true);
+            send.thenAccept(r -> new Response(r).abort());
+        });
+        return result;
+    }
+
+    /**
+     * Send a request and wait for the response headers, on the calling
+     * thread.
+     */
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        try {
+            return toResponse(client.send(buildRequest(request),
+                                HttpResponse.BodyHandlers.ofInputStream()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for "
+                                             + request.getURI());
+        }
+    }
+
+    public SSLContext getSSLContext() {
+        return this.sslContext;
+    }
+
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    public boolean isHttp2() {
+        return this.http2;
+    }
+
+    public Executor getExecutor() {
+        return this.executor;
+    }
+
+    public Stats getStats() {
+        return new Stats(connections.get(), http2Responses.get(),
+                         http11Responses.get());
+    }
+
+    private HttpRequest buildRequest(TransportRequest request)
+            throws IOException {
+        if (request.getConnectionAuthenticator() != null)
+            throw new IOException(
+                    request.getConnectionAuthenticator().getClass().getName()
+                    + " can only authenticate an HttpsURLConnection;"
+                    + " implement Authenticator.authenticateRequest to use"
+                    + " it with " + getClass().getName());
+
+        HttpRequest.BodyPublisher publisher;
+        TransportRequest.Body body = request.getBody();
+        if (body == null) {
+            publisher = HttpRequest.BodyPublishers.noBody();
+        } else {
+            // The JDK client pulls the body rather than letting us write
+            // it, so it is serialized into memory first, once.
+            BodyBuffer out = new BodyBuffer(body.getContentLength());
+            body.writeTo(out);
+            publisher = out.publisher();
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(
+                                                        request.getURI())
+                                    .method(request.getMethod(), publisher);
+        for (Map.Entry<String, String> header
+                                    : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        return builder.build();
+    }
+
+    private TransportResponse toResponse(HttpResponse<InputStream> response) {
+        if (response.version() == HttpClient.Version.HTTP_2)
+            http2Responses.incrementAndGet();
+        else
+            http11Responses.incrementAndGet();
+        return new Response(response);
+    }
+
+    /**
+     * Buffer that hands its array to the publisher without copying it.
+     */
+    private static class BodyBuffer extends ByteArrayOutputStream {
+        BodyBuffer(long length) {
+            super(length >= 0 && length < Integer.MAX_VALUE ? (int) length
+                                                            : 8192);
+        }
+
+        HttpRequest.BodyPublisher publisher() {
+            return HttpRequest.BodyPublishers.ofByteArray(buf, 0, count);
+        }
+    }
+
+    /**
+     * Response whose body is streamed from the connection.
+     */
+    static class Response implements TransportResponse {
+        private final HttpResponse<InputStream> response;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Response(HttpResponse<InputStream> response) {
+            this.response = response;
+        }
+
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        public String getStatusMessage() {
+            return reasonPhrase(response.statusCode());
+        }
+
+        public String getHeader(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return response.headers().map();
+        }
+
+        public InputStream getBody() {
+            InputStream body = response.body();
+            return body == null ? new ByteArrayInputStream(new byte[0])
+                                : body;
+        }
+
+        /**
+         * Drain and close the body, so the connection can be reused. No
+         * lock is held while draining, so it doesn't pin a virtual thread.
+         */
+        public void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            if (response.body() != null)
+                BaseTransferAPIClient.drain(response.body());
+        }
+
+        /**
+         * Close the body unread, which cancels the exchange and closes an
+         * HTTP/1.1 connection, or resets the HTTP/2 stream. This also
+         * cuts short a drain already in progress.
+         */
+        public void abort() {
+            closed.set(true);
+            if (response.body() != null) {
+                try {
+                    response.body().close();
+                } catch (IOException e) {
+                    // The exchange is being thrown away.
+                }
+            }
+        }
+    }
+
+    /**
+     * Connection and protocol counters of a transport.
+     */
+    public static class Stats {
+        private final long connections;
+        private final long http2;
+        private final long http11;
+
+        Stats(long connections, long http2, long http11) {
+            this.connections = connections;
+            this.http2 = http2;
+            this.http11 = http11;
+        }
+
+        /** Number of TLS connections opened. */
+        public long getConnections() { return connections; }
+        /** Number of responses received over HTTP/2. */
+        public long getHttp2Responses() { return http2; }
+        /** Number of responses received over HTTP/1.1. */
+        public long getHttp11Responses() { return http11; }
+
+        public String toString() {
+            return "connections=" + connections + " http2Responses=" + http2
+                   + " http11Responses=" + http11;
+        }
+    }
+
+    /**
+     * The JDK client does its TLS with an SSLEngine per connection; this
+     * context hands out the engines of the real one and counts them.
+     */
+    private class CountingSSLContext extends SSLContext {
+        CountingSSLContext(final SSLContext delegate) {
+            super(new SSLContextSpi() {
+                protected void engineInit(KeyManager[] km, TrustManager[] tm,
+                                          SecureRandom random)
+                        throws KeyManagementException {
+                    throw new KeyManagementException(
+                                            "context is already initialized");
+                }
+
+                protected SSLSocketFactory engineGetSocketFactory() {
+                    return delegate.getSocketFactory();
+                }
+
+                protected SSLServerSocketFactory
+                                        engineGetServerSocketFactory() {
+                    return delegate.getServerSocketFactory();
+                }
+
+                protected SSLEngine engineCreateSSLEngine() {
+                    connections.incrementAndGet();
+                    return delegate.createSSLEngine();
+                }
+
+                protected SSLEngine engineCreateSSLEngine(String host,
+                                                          int port) {
+                    connections.incrementAndGet();
+                    return delegate.createSSLEngine(host, port);
+                }
+
+                protected SSLSessionContext engineGetServerSessionContext() {
+                    return delegate.getServerSessionContext();
+                }
+
+                protected SSLSessionContext engineGetClientSessionContext() {
+                    return delegate.getClientSessionContext();
+                }
+
+                protected SSLParameters engineGetDefaultSSLParameters() {
+                    return delegate.getDefaultSSLParameters();
+                }
+
+                protected SSLParameters engineGetSupportedSSLParameters() {
+                    return delegate.getSupportedSSLParameters();
+                }
+            }, delegate.getProvider(), delegate.getProtocol());
+        }
+    }
+
+    /**
+     * HTTP/2 responses have no reason phrase, and the JDK client doesn't
+     * expose the HTTP/1.1 one, so fill in the standard text for the
+     * statusMessage fields.
+     */
+    static String reasonPhrase(int statusCode) {
+        switch (statusCode) {
+        case 200: return "OK";
+        case 201: return "Created";
+        case 202: return "Accepted";
+        case 204: return "No Content";
+        case 304: return "Not Modified";
+        case 400: return "Bad Request";
+        case 401: return "Unauthorized";
+        case 403: return "Forbidden";
+        case 404: return "Not Found";
+        case 405: return "Method Not Allowed";
+        case 409: return "Conflict";
+        case 429: return "Too Many Requests";
+        case 500: return "Internal Server Error";
+        case 502: return "Bad Gateway";
+        case 503: return "Service Unavailable";
+        case 504: return "Gateway Timeout";
+        default: return "";
+        }
+    }
+}
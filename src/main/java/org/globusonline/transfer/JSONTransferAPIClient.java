@@ -17,16 +17,25 @@
 package org.globusonline.transfer;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.net.URLEncoder;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -35,12 +44,15 @@ import javax.net.ssl.TrustManager;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 
 /**
  * Client which parses JSON response into org.json.JSONObject, from json.org.
  */
 public class JSONTransferAPIClient extends BCTransferAPIClient {
+    private volatile SingleFlight<String, Result> singleFlight;
+    private volatile ResponseCache responseCache;
 
     public static void main(String[] args) {
         if (args.length < 1) {
@@ -163,7 +175,7 @@ throws KeyManagementException, NoSuchAlgorithmException {
                                          String errorCode, InputStream input) {
         APIError error = new APIError(statusCode, statusMessage, errorCode);
         try {
-            JSONObject errorDocument = new JSONObject(readString(input));
+            JSONObject errorDocument = readDocument(input);
             error.requestId = errorDocument.getString("request_id");
             error.resource = errorDocument.getString("resource");
             error.code = errorDocument.getString("code");
@@ -231,24 +243,344 @@ throws KeyManagementException, NoSuchAlgorithmException {
         return requestResult("DELETE", path, null, queryParams);
     }
 
+    /**
+     * Coalesce identical GET requests made while one is already in
+     * flight: same path, query and credentials. Only one request is sent,
+     * and every caller gets its own copy of the Result. Off by default. Turning it on when it's
+     * already on keeps the requests in flight and the stats.
+     */
+    public synchronized void setCoalesceRequests(boolean coalesce) {
+        if (!coalesce)
+            this.singleFlight = null;
+        else if (this.singleFlight == null)
+            this.singleFlight = new SingleFlight<String, Result>();
+    }
+
+    public boolean getCoalesceRequests() {
+        return this.singleFlight != null;
+    }
+
+    /**
+     * Stats on coalesced requests, or null if coalescing is off.
+     */
+    public SingleFlight.Stats getCoalescingStats() {
+        SingleFlight<String, Result> flight = this.singleFlight;
+        return flight == null ? null : flight.getStats();
+    }
+
+    /**
+     * Cache GET responses that carry an ETag or Last-Modified validator,
+     * and revalidate them with conditional requests, see
+     * {@link ResponseCache}. Null, the default, turns caching off.
+     */
+    public void setResponseCache(ResponseCache cache) {
+        this.responseCache = cache;
+    }
+
+    public ResponseCache getResponseCache() {
+        return this.responseCache;
+    }
+
     public Result requestResult(String method, String path, JSONObject data,
                                 Map<String, String> queryParams)
         throws IOException, MalformedURLException, GeneralSecurityException,
                JSONException, APIError {
-        String stringData = null;
-        if (data != null)
-            stringData = data.toString();
+        TransportRequest request = newJSONRequest(method, path, data,
+                                                  queryParams);
+        SingleFlight<String, Result> flight = this.singleFlight;
+        if (flight == null || !method.equals("GET"))
+            return send(request);
+
+        CompletableFuture<Result> call = new CompletableFuture<Result>();
+        CompletableFuture<Result> inFlight = flight.join(requestKey(request),
+                                                         call);
+        if (inFlight != null)
+            return await(inFlight).copy();
+        try {
+            Result result = send(request);
+            // The waiters copy a copy, so this caller may change its own.
+            call.complete(result.copy());
+            return result;
+        } catch (Throwable e) {
+            // Anything, Errors included, or the waiters never return.
+            call.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private Result send(TransportRequest request)
+        throws IOException, JSONException, APIError {
+        ResponseCache cache = this.responseCache;
+        ResponseCache.Entry entry = revalidate(cache, request);
+        TransportResponse response = execute(request);
+        if (isStrayNotModified(cache, entry, request, response)) {
+            response.close();
+            ResponseCache.removeConditions(request);
+            response = execute(request);
+        }
+        try {
+            return toResult(cache, entry, request, response);
+        } finally {
+            response.close();
+        }
+    }
 
-        HttpsURLConnection c = request(method, path, stringData, queryParams);
+    public CompletableFuture<Result> getResultAsync(String path) {
+        return getResultAsync(path, null);
+    }
 
-        Result result = new Result();
-        result.statusCode = c.getResponseCode();
-        result.statusMessage = c.getResponseMessage();
+    public CompletableFuture<Result> getResultAsync(String path,
+                                            Map<String, String> queryParams) {
+        return requestResultAsync("GET", path, null, queryParams);
+    }
+
+    public CompletableFuture<Result> postResultAsync(String path,
+                                                     JSONObject data) {
+        return postResultAsync(path, data, null);
+    }
+
+    public CompletableFuture<Result> postResultAsync(String path,
+                                            JSONObject data,
+                                            Map<String, String> queryParams) {
+        return requestResultAsync("POST", path, data, queryParams);
+    }
+
+    public CompletableFuture<Result> putResultAsync(String path,
+                                                    JSONObject data) {
+        return putResultAsync(path, data, null);
+    }
+
+    public CompletableFuture<Result> putResultAsync(String path,
+                                            JSONObject data,
+                                            Map<String, String> queryParams) {
+        return requestResultAsync("PUT", path, data, queryParams);
+    }
+
+    public CompletableFuture<Result> deleteResultAsync(String path) {
+        return deleteResultAsync(path, null);
+    }
+
+    public CompletableFuture<Result> deleteResultAsync(String path,
+                                            Map<String, String> queryParams) {
+        return requestResultAsync("DELETE", path, null, queryParams);
+    }
+
+    /**
+     * Asynchronous version of {@link #requestResult}. The calling thread
+     * only prepares the request; sending it, waiting for the response and
+     * parsing it don't hold a thread of the caller.
+     *
+     * The future completes exceptionally with the same exceptions the
+     * synchronous method throws (APIError, IOException, JSONException),
+     * wrapped in a CompletionException where the CompletableFuture API
+     * requires it.
+     */
+    public CompletableFuture<Result> requestResultAsync(String method,
+                                            String path, JSONObject data,
+                                            Map<String, String> queryParams) {
+        TransportRequest request;
+        try {
+            request = newJSONRequest(method, path, data, queryParams);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        SingleFlight<String, Result> flight = this.singleFlight;
+        if (flight == null || !method.equals("GET"))
+            return sendAsync(request);
+
+        final CompletableFuture<Result> call = new CompletableFuture<Result>();
+        CompletableFuture<Result> inFlight = flight.join(requestKey(request),
+                                                         call);
+        // Dependent futures, so a caller cancelling its future doesn't
+        // affect the others.
+        if (inFlight != null) {
+            return inFlight.thenApply(result -> {
+                try {
+                    return result.copy();
+                } catch (JSONException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }
+        return sendAsync(request).whenComplete((result, error) -> {
+            if (error != null) {
+                if (error instanceof CompletionException
+                    && error.getCause() != null)
+                    error = error.getCause();
+                call.completeExceptionally(error);
+                return;
+            }
+            try {
+                call.complete(result.copy());
+            } catch (Throwable e) {
+                call.completeExceptionally(e);
+            }
+        });
+    }
+
+    private CompletableFuture<Result> sendAsync(TransportRequest request) {
+        final ResponseCache cache = this.responseCache;
+        final ResponseCache.Entry entry = revalidate(cache, request);
+        return executeAsync(request).thenCompose(response -> {
+            if (!isStrayNotModified(cache, entry, request, response))
+                return CompletableFuture.completedFuture(response);
+            response.close();
+            ResponseCache.removeConditions(request);
+            return executeAsync(request);
+        }).thenApply(response -> {
+            try {
+                return toResult(cache, entry, request, response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } catch (JSONException e) {
+                throw new CompletionException(e);
+            } finally {
+                response.close();
+            }
+        });
+    }
+
+    /**
+     * Make a GET conditional on the cached response for it, if any. Other
+     * methods may change the resource, so they drop its cached responses.
+     *
+     * @return the cached response, or null.
+     */
+    private static ResponseCache.Entry revalidate(ResponseCache cache,
+                                                  TransportRequest request) {
+        if (cache == null)
+            return null;
+        if (!request.getMethod().equals("GET")) {
+            cache.invalidate(request.getURI().getPath());
+            return null;
+        }
+        ResponseCache.Entry entry = cache.get(requestKey(request));
+        if (entry != null)
+            ResponseCache.addConditions(request, entry);
+        return entry;
+    }
+
+    /**
+     * Whether a GET got 304 Not Modified with nothing cached to serve.
+     * That's a miss: the request must be sent again without conditions.
+     */
+    private static boolean isStrayNotModified(ResponseCache cache,
+                                              ResponseCache.Entry entry,
+                                              TransportRequest request,
+                                              TransportResponse response) {
+        return cache != null && entry == null
+               && request.getMethod().equals("GET")
+               && response.getStatusCode() == 304;
+    }
 
-        result.document = new JSONObject(readString(c.getInputStream()));
+    private static Result toResult(ResponseCache cache,
+                                   ResponseCache.Entry entry,
+                                   TransportRequest request,
+                                   TransportResponse response)
+            throws IOException, JSONException {
+        if (cache == null || !request.getMethod().equals("GET"))
+            return toResult(response);
+        if (entry != null && response.getStatusCode() == 304) {
+            cache.hit();
+            return entry.result();
+        }
+        return cache.read(requestKey(request), request, response);
+    }
+
+    /**
+     * Requests are identical if they have the same URI, which includes
+     * the query, and are made for the same user. The Authorization header
+     * is left out: it changes with every token refresh, and that would
+     * empty the cache.
+     */
+    private static String requestKey(TransportRequest request) {
+        return request.getURI() + " "
+               + request.getHeader("X-Transfer-API-X509-User") + " "
+               + request.getHeader("Accept-Encoding");
+    }
+
+    private static Result await(CompletableFuture<Result> call)
+        throws IOException, JSONException, APIError {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                            "Interrupted waiting for a coalesced request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof JSONException)
+                throw (JSONException) cause;
+            if (cause instanceof APIError)
+                throw (APIError) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new CompletionException(cause);
+        }
+    }
+
+    private TransportRequest newJSONRequest(String method, String path,
+                                            JSONObject data,
+                                            Map<String, String> queryParams)
+            throws IOException {
+        TransportRequest request = newRequest(method, path,
+                                    data == null ? null : new JSONBody(data),
+                                    queryParams);
+        // The service accepts a submission only once per submission_id, so
+        // resending the same document can't start a second transfer.
+        if (method.equals("POST")
+            && request.getResource().equals("/transfer")
+            && data != null && data.has("submission_id")) {
+            request.setIdempotent(true);
+        }
+        return request;
+    }
+
+    /**
+     * Serializes the document straight into the request stream as UTF-8,
+     * rather than building the whole text first. The length isn't known
+     * in advance, so the body is sent chunked.
+     */
+    private static class JSONBody implements TransportRequest.Body {
+        private final JSONObject document;
 
-        c.disconnect();
+        JSONBody(JSONObject document) {
+            this.document = document;
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+            try {
+                document.write(writer);
+            } catch (JSONException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getMessage());
+            }
+            // Flush only; the transport closes the stream.
+            writer.flush();
+        }
+    }
 
+    /**
+     * Parse the response body. Reading it to the end lets the transport
+     * reuse the connection once the response is closed.
+     */
+    private static Result toResult(TransportResponse response)
+            throws IOException, JSONException {
+        Result result = new Result();
+        result.statusCode = response.getStatusCode();
+        result.statusMessage = response.getStatusMessage();
+        result.document = readDocument(response.getBody());
         return result;
     }
 
@@ -304,6 +636,68 @@ throws KeyManagementException, NoSuchAlgorithmException {
         return getResult(resource, params);
     }
 
+    public CompletableFuture<Result> endpointDeactivateAsync(
+                                                    String endpointName) {
+        String resource;
+        try {
+            resource = endpointPath(endpointName) + "/deactivate";
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return postResultAsync(resource, null);
+    }
+
+    public CompletableFuture<Result> endpointAutoactivateAsync(
+                                        String endpointName,
+                                        Map<String, String> queryParams) {
+        String resource;
+        try {
+            resource = endpointPath(endpointName) + "/autoactivate";
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return postResultAsync(resource, null, queryParams);
+    }
+
+    public CompletableFuture<Result> endpointLsAsync(String endpointName,
+                                                     String path) {
+        String resource;
+        try {
+            resource = endpointPath(endpointName) + "/ls";
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        if (path != null) {
+            params.put("path", path);
+        }
+        return getResultAsync(resource, params);
+    }
+
+    public CompletableFuture<String> getSubmissionIdAsync() {
+        return getResultAsync("/submission_id").thenApply(r -> {
+            try {
+                return r.document.getString("value");
+            } catch (JSONException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public CompletableFuture<Result> transferAsync(JSONObject document) {
+        return postResultAsync("/transfer", document);
+    }
+
+    public CompletableFuture<Result> transferAsync(
+                                            TransferDocument document) {
+        return transferAsync(document.getJSONObject());
+    }
+
+    public CompletableFuture<Result> taskAsync(String taskId,
+                                            Map<String, String> params) {
+        return getResultAsync("/task/" + taskId, params);
+    }
+
     public static class Result {
         public JSONObject document;
         public int statusCode;
@@ -314,13 +708,55 @@ throws KeyManagementException, NoSuchAlgorithmException {
             this.statusCode = -1;
             this.statusMessage = null;
         }
+
+        /**
+         * A copy with its own document.
+         */
+        Result copy() throws JSONException {
+            return of(statusCode, statusMessage,
+                      document == null ? null
+                                       : new JSONObject(document.toString()));
+        }
+
+        static Result of(int statusCode, String statusMessage,
+                         JSONObject document) {
+            Result result = new Result();
+            result.statusCode = statusCode;
+            result.statusMessage = statusMessage;
+            result.document = document;
+            return result;
+        }
     }
 
+    /**
+     * Parse a JSON document straight from the stream, which is read as
+     * UTF-8, without building the text as a string first. The stream is
+     * left open, but it is read ahead through a buffer, so its position
+     * afterwards is unspecified and anything after the document may have
+     * been consumed.
+     */
+    public static JSONObject readDocument(InputStream in)
+            throws IOException, JSONException {
+        Reader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8), 8192);
+        try {
+            return new JSONObject(new JSONTokener(reader));
+        } catch (JSONException e) {
+            // The tokener wraps read errors; report those as such.
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the whole stream as a UTF-8 string and close it.
+     */
     public static String readString(InputStream in) throws IOException {
         Reader reader = null;
         try {
-            // TODO: add charset
-            reader = new BufferedReader(new InputStreamReader(in));
+            reader = new BufferedReader(
+                    new InputStreamReader(in, StandardCharsets.UTF_8));
             StringBuilder builder = new StringBuilder();
             char[] buffer = new char[8192];
             int read;
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Token source that gets client credentials tokens from the Globus Nexus
+ * goauth API, for use with {@link GoauthAuthenticator}. See the README
+ * for the equivalent curl command.
+ */
+public class NexusTokenSource implements GoauthAuthenticator.TokenSource {
+    public static final String DEFAULT_TOKEN_URL =
+        "https://nexus.api.globusonline.org/goauth/token"
+        + "?grant_type=client_credentials";
+
+    private final URL tokenUrl;
+    private final String authorization;
+    private volatile SSLSocketFactory socketFactory;
+    private volatile int timeout = 30 * 1000;
+
+    public NexusTokenSource(String username, String password)
+            throws IOException {
+        this(DEFAULT_TOKEN_URL, username, password);
+    }
+
+    public NexusTokenSource(String tokenUrl, String username,
+                            String password) throws IOException {
+        this.tokenUrl = new URL(tokenUrl);
+        String credentials = username + ":" + password;
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+                                credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Use the given socket factory for the token requests, rather than the
+     * JDK default.
+     */
+    public void setSocketFactory(SSLSocketFactory socketFactory) {
+        this.socketFactory = socketFactory;
+    }
+
+    /**
+     * @param timeout  connect and read timeout, in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public GoauthAuthenticator.Token fetchToken() throws IOException {
+        HttpURLConnection c = (HttpURLConnection) tokenUrl.openConnection();
+        SSLSocketFactory socketFactory = this.socketFactory;
+        if (socketFactory != null && c instanceof HttpsURLConnection)
+            ((HttpsURLConnection) c).setSSLSocketFactory(socketFactory);
+        c.setConnectTimeout(this.timeout);
+        c.setReadTimeout(this.timeout);
+        c.setRequestProperty("Authorization", this.authorization);
+        c.setRequestProperty("Accept", "application/json");
+
+        long requested = System.currentTimeMillis();
+        int status = c.getResponseCode();
+        InputStream in = status < 400 ? c.getInputStream()
+                                      : c.getErrorStream();
+        try {
+            if (status >= 400)
+                throw new IOException("Token request failed: " + status
+                                      + " " + c.getResponseMessage());
+            JSONObject document = JSONTransferAPIClient.readDocument(in);
+            // Count the lifetime from the request, to be safe.
+            long expiresAt = document.has("expires_in")
+                ? requested + document.getLong("expires_in") * 1000
+                : Long.MAX_VALUE;
+            return new GoauthAuthenticator.Token(
+                            document.getString("access_token"), expiresAt);
+        } catch (JSONException e) {
+            throw new IOException("Invalid token response: "
+                                  + e.getMessage(), e);
+        } finally {
+            if (in != null)
+                BaseTransferAPIClient.drain(in);
+        }
+    }
+}
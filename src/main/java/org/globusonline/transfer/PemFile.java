@@ -0,0 +1,593 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.math.BigInteger;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Security;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.DSAPrivateKeySpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.EncryptedPrivateKeyInfo;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Reads certificates and private keys from PEM files with the JDK alone.
+ *
+ * Supported are X.509 certificates, PKCS#8 keys ("PRIVATE KEY"), OpenSSL
+ * RSA, EC and DSA keys ("RSA PRIVATE KEY", ...), and both encrypted forms:
+ * PKCS#8 "ENCRYPTED PRIVATE KEY" and OpenSSL keys with a DEK-Info header.
+ * Bouncy Castle is only loaded, and registered as a provider, when the JDK
+ * doesn't support a key's algorithm, curve or encryption, so clients that
+ * never read such keys don't need it on the class path.
+ *
+ * Files may also be given as URLs, such as class path resources.
+ */
+public final class PemFile {
+    private static final String RSA_OID = "2a864886f70d010101";
+    private static final String EC_OID = "2a8648ce3d0201";
+
+    // Key algorithms by the DER encoding of their OID, in hex.
+    private static final Map<String, String> KEY_ALGORITHMS =
+                                            new HashMap<String, String>();
+    static {
+        KEY_ALGORITHMS.put(RSA_OID, "RSA");
+        KEY_ALGORITHMS.put("2a864886f70d01010a", "RSASSA-PSS");
+        KEY_ALGORITHMS.put(EC_OID, "EC");
+        KEY_ALGORITHMS.put("2a8648ce380401", "DSA");
+        KEY_ALGORITHMS.put("2b6570", "Ed25519");
+        KEY_ALGORITHMS.put("2b6571", "Ed448");
+    }
+
+    private static final String BOUNCY_CASTLE =
+                        "org.bouncycastle.jce.provider.BouncyCastleProvider";
+    private static Provider bouncyCastle; // guarded by PemFile.class
+
+    private PemFile() {}
+
+    /**
+     * One block of a PEM file.
+     */
+    private static class Block {
+        final String type;
+        final Map<String, String> headers;
+        final byte[] data;
+
+        Block(String type, Map<String, String> headers, byte[] data) {
+            this.type = type;
+            this.headers = headers;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Read the certificates in a file, ignoring anything else in it.
+     */
+    public static List<X509Certificate> readCertificates(String file)
+                            throws GeneralSecurityException, IOException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        List<X509Certificate> certs = new ArrayList<X509Certificate>();
+        for (Block block : read(file)) {
+            if (block.type.equals("CERTIFICATE")
+                    || block.type.equals("X509 CERTIFICATE")
+                    || block.type.equals("TRUSTED CERTIFICATE")) {
+                certs.add((X509Certificate) cf.generateCertificate(
+                                    new ByteArrayInputStream(block.data)));
+            }
+        }
+        return certs;
+    }
+
+    /**
+     * Read the first private key in a file, ignoring anything else in it.
+     *
+     * @param password  password of an encrypted key, or null.
+     */
+    public static PrivateKey readPrivateKey(String file, char[] password)
+                            throws GeneralSecurityException, IOException {
+        for (Block block : read(file)) {
+            if (block.type.endsWith("PRIVATE KEY"))
+                return toPrivateKey(block, password);
+        }
+        throw new InvalidKeySpecException("no private key in " + file);
+    }
+
+    /**
+     * Create trust managers that trust the certificates in a file.
+     */
+    public static TrustManager[] createTrustManagers(String caFile)
+                            throws GeneralSecurityException, IOException {
+        List<X509Certificate> certs = readCertificates(caFile);
+        if (certs.isEmpty())
+            throw new GeneralSecurityException("no certificates in "
+                                               + caFile);
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null);
+        for (int i = 0; i < certs.size(); i++) {
+            ks.setCertificateEntry("server-ca" + i, certs.get(i));
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+                                    TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        return tmf.getTrustManagers();
+    }
+
+    /**
+     * Create key managers for a client certificate, followed by the rest
+     * of its chain, and its private key. The two may be in the same file.
+     *
+     * @param password  password of an encrypted key, or null.
+     */
+    public static KeyManager[] createKeyManagers(String certFile,
+                                                 String keyFile,
+                                                 char[] password)
+                            throws GeneralSecurityException, IOException {
+        PrivateKey key = readPrivateKey(keyFile, password);
+        List<X509Certificate> chain = readCertificates(certFile);
+        if (chain.isEmpty())
+            throw new GeneralSecurityException("no certificates in "
+                                               + certFile);
+
+        // The key store is never written out, so the key entry's password
+        // doesn't protect anything; it is just required.
+        char[] entryPassword = { ' ' };
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null);
+        ks.setKeyEntry("client-key", key, entryPassword,
+                       chain.toArray(new Certificate[0]));
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                                    KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, entryPassword);
+        return kmf.getKeyManagers();
+    }
+
+    private static InputStream open(String file) throws IOException {
+        if (new File(file).isFile())
+            return new FileInputStream(file);
+        try {
+            return new URL(file).openStream();
+        } catch (MalformedURLException e) {
+            throw new FileNotFoundException(file);
+        }
+    }
+
+    private static List<Block> read(String file) throws IOException {
+        List<Block> blocks = new ArrayList<Block>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(
+                                    open(file), StandardCharsets.US_ASCII));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (!line.startsWith("-----BEGIN ") || !line.endsWith("-----"))
+                    continue;
+                String type = line.substring(11, line.length() - 5);
+                String end = "-----END " + type + "-----";
+                Map<String, String> headers = new HashMap<String, String>();
+                StringBuilder base64 = new StringBuilder();
+                while (true) {
+                    line = r.readLine();
+                    if (line == null)
+                        throw new IOException("missing " + end + " in "
+                                              + file);
+                    line = line.trim();
+                    if (line.equals(end))
+                        break;
+                    int colon = line.indexOf(':');
+                    if (colon > 0 && base64.length() == 0)
+                        headers.put(line.substring(0, colon).trim(),
+                                    line.substring(colon + 1).trim());
+                    else
+                        base64.append(line);
+                }
+                try {
+                    blocks.add(new Block(type, headers,
+                        Base64.getMimeDecoder().decode(base64.toString())));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("bad base64 in " + type + " in "
+                                          + file, e);
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return blocks;
+    }
+
+    private static PrivateKey toPrivateKey(Block block, char[] password)
+                            throws GeneralSecurityException {
+        byte[] der = block.data;
+        if (block.type.equals("ENCRYPTED PRIVATE KEY"))
+            return pkcs8(decryptPkcs8(der, requirePassword(password)));
+        String dekInfo = block.headers.get("DEK-Info");
+        if (dekInfo != null)
+            der = decryptOpenSSL(der, dekInfo, requirePassword(password));
+
+        if (block.type.equals("PRIVATE KEY"))
+            return pkcs8(der);
+        if (block.type.equals("RSA PRIVATE KEY"))
+            return pkcs8(toPkcs8(der(0x30, der(0x06, hex(RSA_OID)),
+                                     der(0x05)), der));
+        if (block.type.equals("EC PRIVATE KEY"))
+            return pkcs8(ecToPkcs8(der));
+        if (block.type.equals("DSA PRIVATE KEY"))
+            return dsa(der);
+        throw new InvalidKeySpecException("unsupported key type "
+                                          + block.type);
+    }
+
+    private static char[] requirePassword(char[] password)
+                            throws UnrecoverableKeyException {
+        if (password == null)
+            throw new UnrecoverableKeyException(
+                            "key is encrypted and no password was given");
+        return password;
+    }
+
+    /**
+     * Decode a PKCS#8 key, trying Bouncy Castle if the JDK doesn't know
+     * the algorithm or, for EC keys, the curve.
+     */
+    private static PrivateKey pkcs8(byte[] der)
+                            throws GeneralSecurityException {
+        DerReader info = new DerReader(der).sequence();
+        info.read(0x02);
+        byte[] oid = info.sequence().read(0x06);
+        String algorithm = KEY_ALGORITHMS.get(hex(oid));
+        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(der);
+        if (algorithm != null) {
+            try {
+                return KeyFactory.getInstance(algorithm)
+                                 .generatePrivate(spec);
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                // Fall through to Bouncy Castle.
+            }
+        } else {
+            algorithm = oidString(oid);
+        }
+        return KeyFactory.getInstance(algorithm, bouncyCastle())
+                         .generatePrivate(spec);
+    }
+
+    private static byte[] decryptPkcs8(byte[] der, char[] password)
+                            throws GeneralSecurityException {
+        EncryptedPrivateKeyInfo info;
+        try {
+            info = new EncryptedPrivateKeyInfo(der);
+        } catch (IOException e) {
+            throw new InvalidKeySpecException("malformed encrypted key", e);
+        }
+        AlgorithmParameters params = info.getAlgParameters();
+        String algorithm = info.getAlgName();
+        // PBES2 names the real algorithm in its parameters, for example
+        // PBEWithHmacSHA256AndAES_256.
+        if (params != null && (algorithm.equals("PBES2")
+                               || algorithm.equals("1.2.840.113549.1.5.13")))
+            algorithm = params.toString();
+        PBEKeySpec keySpec = new PBEKeySpec(password);
+        try {
+            Cipher cipher;
+            SecretKeyFactory factory;
+            try {
+                cipher = Cipher.getInstance(algorithm);
+                factory = SecretKeyFactory.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                cipher = Cipher.getInstance(algorithm, bouncyCastle());
+                factory = SecretKeyFactory.getInstance(algorithm,
+                                                       bouncyCastle());
+            }
+            cipher.init(Cipher.DECRYPT_MODE, factory.generateSecret(keySpec),
+                        params);
+            return info.getKeySpec(cipher).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new UnrecoverableKeyException(
+                        "can't decrypt key, the password may be wrong");
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    /**
+     * Decrypt an OpenSSL key with a DEK-Info header, such as
+     * "AES-256-CBC,<hex iv>". The key is derived from the password and the
+     * first 8 bytes of the IV with OpenSSL's EVP_BytesToKey, using MD5.
+     */
+    private static byte[] decryptOpenSSL(byte[] der, String dekInfo,
+                                         char[] password)
+                            throws GeneralSecurityException {
+        int comma = dekInfo.indexOf(',');
+        if (comma < 0)
+            throw new InvalidKeySpecException("bad DEK-Info: " + dekInfo);
+        String name = dekInfo.substring(0, comma).trim();
+        byte[] iv = hex(dekInfo.substring(comma + 1).trim());
+        String transformation;
+        int keyLength;
+        if (name.equals("AES-128-CBC")) {
+            transformation = "AES/CBC/PKCS5Padding";
+            keyLength = 16;
+        } else if (name.equals("AES-192-CBC")) {
+            transformation = "AES/CBC/PKCS5Padding";
+            keyLength = 24;
+        } else if (name.equals("AES-256-CBC")) {
+            transformation = "AES/CBC/PKCS5Padding";
+            keyLength = 32;
+        } else if (name.equals("DES-EDE3-CBC")) {
+            transformation = "DESede/CBC/PKCS5Padding";
+            keyLength = 24;
+        } else if (name.equals("DES-CBC")) {
+            transformation = "DES/CBC/PKCS5Padding";
+            keyLength = 8;
+        } else {
+            throw new NoSuchAlgorithmException(
+                                "unsupported key encryption " + name);
+        }
+
+        byte[] pass = new String(password).getBytes(StandardCharsets.UTF_8);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        byte[] key = new byte[keyLength];
+        byte[] digest = new byte[0];
+        for (int n = 0; n < keyLength; n += digest.length) {
+            md5.update(digest);
+            md5.update(pass);
+            md5.update(iv, 0, 8);
+            digest = md5.digest();
+            System.arraycopy(digest, 0, key, n,
+                             Math.min(digest.length, keyLength - n));
+        }
+        Arrays.fill(pass, (byte) 0);
+
+        Cipher cipher = Cipher.getInstance(transformation);
+        cipher.init(Cipher.DECRYPT_MODE,
+                    new SecretKeySpec(key, transformation.substring(0,
+                                            transformation.indexOf('/'))),
+                    new IvParameterSpec(iv));
+        try {
+            return cipher.doFinal(der);
+        } catch (GeneralSecurityException e) {
+            throw new UnrecoverableKeyException(
+                        "can't decrypt key, the password may be wrong");
+        }
+    }
+
+    /**
+     * Convert an OpenSSL EC key (SEC1) to PKCS#8, moving the curve from
+     * the key to the algorithm identifier.
+     */
+    private static byte[] ecToPkcs8(byte[] sec1)
+                            throws GeneralSecurityException {
+        DerReader key = new DerReader(sec1).sequence();
+        key.read(0x02);
+        key.read(0x04);
+        byte[] curve = null;
+        if (key.hasMore() && key.peek() == 0xa0)
+            curve = key.read(0xa0);
+        if (curve == null)
+            throw new InvalidKeySpecException("EC key without a curve");
+        return toPkcs8(der(0x30, der(0x06, hex(EC_OID)), curve), sec1);
+    }
+
+    /**
+     * Decode an OpenSSL DSA key: version, p, q, g, y, x.
+     */
+    private static PrivateKey dsa(byte[] der)
+                            throws GeneralSecurityException {
+        DerReader key = new DerReader(der).sequence();
+        key.read(0x02);
+        BigInteger p = new BigInteger(key.read(0x02));
+        BigInteger q = new BigInteger(key.read(0x02));
+        BigInteger g = new BigInteger(key.read(0x02));
+        key.read(0x02);
+        BigInteger x = new BigInteger(key.read(0x02));
+        KeySpec spec = new DSAPrivateKeySpec(x, p, q, g);
+        return KeyFactory.getInstance("DSA").generatePrivate(spec);
+    }
+
+    private static byte[] toPkcs8(byte[] algorithmId, byte[] key) {
+        return der(0x30, der(0x02, new byte[] { 0 }), algorithmId,
+                   der(0x04, key));
+    }
+
+    /**
+     * The Bouncy Castle provider, registered the first time it is needed.
+     * Loaded by name so that it is only required on the class path for
+     * keys the JDK can't read.
+     */
+    static synchronized Provider bouncyCastle()
+                            throws NoSuchProviderException {
+        if (bouncyCastle != null)
+            return bouncyCastle;
+        Provider p = Security.getProvider("BC");
+        if (p == null) {
+            try {
+                p = (Provider) Class.forName(BOUNCY_CASTLE)
+                                    .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                NoSuchProviderException nspe = new NoSuchProviderException(
+                    "key format requires Bouncy Castle, which is not on"
+                    + " the class path");
+                nspe.initCause(e);
+                throw nspe;
+            }
+            Security.addProvider(p);
+        }
+        bouncyCastle = p;
+        return p;
+    }
+
+    /**
+     * Encode a DER element from its tag and contents.
+     */
+    private static byte[] der(int tag, byte[]... contents) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (byte[] c : contents) {
+            value.write(c, 0, c.length);
+        }
+        int length = value.size();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (8 * i));
+            }
+        }
+        out.write(value.toByteArray(), 0, length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the DER elements of one sequence, enough for the key
+     * structures above.
+     */
+    private static class DerReader {
+        private final byte[] data;
+        private int pos;
+
+        DerReader(byte[] data) {
+            this.data = data;
+        }
+
+        boolean hasMore() {
+            return pos < data.length;
+        }
+
+        int peek() {
+            return data[pos] & 0xff;
+        }
+
+        /**
+         * Read the next element, which must have the given tag, and return
+         * its contents.
+         */
+        byte[] read(int tag) throws InvalidKeySpecException {
+            if (pos + 2 > data.length || peek() != tag)
+                throw new InvalidKeySpecException("malformed key");
+            pos++;
+            int length = data[pos++] & 0xff;
+            if (length >= 0x80) {
+                int bytes = length & 0x7f;
+                if (bytes == 0 || bytes > 3 || pos + bytes > data.length)
+                    throw new InvalidKeySpecException("malformed key");
+                length = 0;
+                for (int i = 0; i < bytes; i++) {
+                    length = (length << 8) | (data[pos++] & 0xff);
+                }
+            }
+            if (pos + length > data.length)
+                throw new InvalidKeySpecException("malformed key");
+            byte[] value = Arrays.copyOfRange(data, pos, pos + length);
+            pos += length;
+            return value;
+        }
+
+        DerReader sequence() throws InvalidKeySpecException {
+            return new DerReader(read(0x30));
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder b = new StringBuilder();
+        for (byte x : bytes) {
+            b.append(String.format("%02x", x & 0xff));
+        }
+        return b.toString();
+    }
+
+    private static byte[] hex(String s) throws InvalidKeySpecException {
+        if (s.length() % 2 != 0)
+            throw new InvalidKeySpecException("bad hex: " + s);
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16);
+            int lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new InvalidKeySpecException("bad hex: " + s);
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+    /**
+     * The dotted form of a DER encoded OID, such as 1.2.840.113549.1.1.1.
+     */
+    private static String oidString(byte[] oid) {
+        StringBuilder b = new StringBuilder();
+        long value = 0;
+        for (byte x : oid) {
+            value = (value << 7) | (x & 0x7f);
+            if ((x & 0x80) != 0)
+                continue;
+            if (b.length() == 0) {
+                int first = (int) Math.min(2, value / 40);
+                b.append(first).append('.').append(value - 40 * first);
+            } else {
+                b.append('.').append(value);
+            }
+            value = 0;
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * FIFO queue of requests waiting for one of a limited number of slots,
+ * behind {@link ConcurrencyLimiter} and each {@link Bulkhead}
+ * compartment.
+ *
+ * A slot is a future, completed with a permit once the request may go.
+ * Freed slots are handed to the waiters at the head of the queue, and
+ * their futures are completed outside the lock, since completing runs the
+ * waiter's dependent stages. A waiter that stops waiting takes its future
+ * off the queue; if it is no longer there, the slot was just handed to
+ * it, and it must take the permit and free it. A waiter that cancelled
+ * its future can't use its permit, so the permit is discarded, which
+ * frees the slot again.
+ */
+final class PermitQueue<P> {
+    static final long WAIT_FOREVER = -1;
+
+    private final IntSupplier limit;
+    private final int maxQueued;
+    private final IntFunction<P> grant;
+    private final Consumer<P> discard;
+
+    // Guarded by this.
+    private int inFlight;
+    private final ArrayDeque<CompletableFuture<P>> queue =
+                                        new ArrayDeque<CompletableFuture<P>>();
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param limit  the number of slots, read whenever one may be taken.
+     * @param maxQueued  requests that may wait at once.
+     * @param grant  makes the permit for a slot, given the number of
+     *               requests in flight with it.
+     * @param discard  frees the slot of a permit nobody will use.
+     */
+    PermitQueue(IntSupplier limit, int maxQueued, IntFunction<P> grant,
+                Consumer<P> discard) {
+        this.limit = limit;
+        this.maxQueued = maxQueued;
+        this.grant = grant;
+        this.discard = discard;
+    }
+
+    /**
+     * Take a free slot, or queue for one without blocking.
+     *
+     * @param timeout  WAIT_FOREVER, 0 to fail at once, or the longest
+     *                 time to wait, in milliseconds.
+     * @param full  the rejection when the queue is full.
+     * @param timedOut  the rejection when the wait times out.
+     */
+    CompletableFuture<P> acquire(long timeout,
+                                 Supplier<RequestRejectedException> full,
+                                 Supplier<RequestRejectedException> timedOut) {
+        final CompletableFuture<P> slot = new CompletableFuture<P>();
+        synchronized (this) {
+            // Nothing depends on the new future yet, so it may be
+            // completed here.
+            if (inFlight < limit.getAsInt()) {
+                inFlight++;
+                granted.incrementAndGet();
+                slot.complete(grant.apply(inFlight));
+                return slot;
+            }
+            if (timeout == 0 || queue.size() >= maxQueued) {
+                rejected.incrementAndGet();
+                slot.completeExceptionally(timeout == 0 ? timedOut.get()
+                                                        : full.get());
+                return slot;
+            }
+            queue.add(slot);
+        }
+        queued.incrementAndGet();
+        if (timeout > 0) {
+            CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS)
+                .execute(() -> {
+                    if (giveUp(slot))
+                        slot.completeExceptionally(timedOut.get());
+                });
+        }
+        return slot;
+    }
+
+    /**
+     * Wait for a slot from {@link #acquire}.
+     */
+    P await(CompletableFuture<P> slot, long timeout,
+            Supplier<RequestRejectedException> timedOut)
+            throws RequestRejectedException, InterruptedException {
+        return await(slot, timeout, this::giveUp, discard, timedOut);
+    }
+
+    /**
+     * Wait for a slot, taking it off its queue if the wait times out or
+     * is interrupted. Also used by {@link RequestScheduler}, whose queues
+     * aren't FIFO.
+     *
+     * @param giveUp  takes a slot off its queue, or returns false if it
+     *                was handed over meanwhile.
+     */
+    static <P> P await(CompletableFuture<P> slot, long timeout,
+                       Predicate<CompletableFuture<P>> giveUp,
+                       Consumer<P> discard,
+                       Supplier<RequestRejectedException> timedOut)
+            throws RequestRejectedException, InterruptedException {
+        if (slot.isDone())
+            return join(slot);
+        try {
+            return timeout < 0 ? slot.get()
+                               : slot.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw (RequestRejectedException) e.getCause();
+        } catch (TimeoutException e) {
+            if (giveUp.test(slot))
+                throw timedOut.get();
+            // Handed over, or timed out by acquire, just now.
+            return join(slot);
+        } catch (InterruptedException e) {
+            if (!giveUp.test(slot)) {
+                try {
+                    discard.accept(join(slot));
+                } catch (RequestRejectedException re) {
+                    // Timed out meanwhile; there is no slot to free.
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for a slot that is no longer queued, which is about to be
+     * completed.
+     */
+    private static <P> P join(CompletableFuture<P> slot)
+            throws RequestRejectedException {
+        try {
+            return slot.join();
+        } catch (CompletionException e) {
+            throw (RequestRejectedException) e.getCause();
+        }
+    }
+
+    /**
+     * Complete a slot that was taken off its queue, outside the lock.
+     */
+    static <P> void handOver(CompletableFuture<P> slot, P permit,
+                             Consumer<P> discard) {
+        if (!slot.complete(permit))
+            discard.accept(permit);
+    }
+
+    /**
+     * Take a waiter that stopped waiting off the queue.
+     *
+     * @return false if it was handed a slot meanwhile.
+     */
+    private synchronized boolean giveUp(CompletableFuture<P> slot) {
+        if (!queue.remove(slot))
+            return false;
+        rejected.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Free a slot, handing it to the next waiter.
+     */
+    void release() {
+        handOver(true);
+    }
+
+    /**
+     * Hand out the slots a raised limit freed.
+     */
+    void limitChanged() {
+        handOver(false);
+    }
+
+    private void handOver(boolean release) {
+        ArrayDeque<CompletableFuture<P>> next =
+                                new ArrayDeque<CompletableFuture<P>>();
+        int nowInFlight;
+        synchronized (this) {
+            if (release)
+                inFlight--;
+            int limit = this.limit.getAsInt();
+            while (inFlight < limit && !queue.isEmpty()) {
+                next.add(queue.poll());
+                inFlight++;
+                granted.incrementAndGet();
+            }
+            nowInFlight = inFlight;
+        }
+        for (CompletableFuture<P> slot : next)
+            handOver(slot, grant.apply(nowInFlight), discard);
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /** Number of slots handed out. */
+    long granted() {
+        return granted.get();
+    }
+
+    /** Number of requests that had to wait. */
+    long queued() {
+        return queued.get();
+    }
+
+    /** Number of requests rejected, for a full queue or a timeout. */
+    long rejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport that sends requests on another transport no faster than a
+ * {@link RateLimiter} allows. Asynchronous requests that must wait are
+ * scheduled for later rather than holding a thread.
+ */
+public class RateLimitedTransport implements Transport {
+    private final Transport delegate;
+    private final RateLimiter limiter;
+
+    public RateLimitedTransport(Transport delegate, RateLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    public Transport getDelegate() { return this.delegate; }
+    public RateLimiter getLimiter() { return this.limiter; }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        RateLimiter.Reservation reservation = limiter.reserve(request);
+        long wait = reservation.getWaitNanos();
+        if (wait > 0) {
+            long deadline = System.nanoTime() + wait;
+            while (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                if (Thread.interrupted()) {
+                    limiter.cancel(request, reservation);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                                "Interrupted waiting for the rate limit on "
+                                + request.getURI());
+                }
+                wait = deadline - System.nanoTime();
+            }
+        }
+        return delegate.execute(request);
+    }
+
+    public CompletableFuture<TransportResponse> executeAsync(
+                                        final TransportRequest request) {
+        long wait;
+        try {
+            wait = limiter.reserve(request).getWaitNanos();
+        } catch (RequestRejectedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (wait <= 0)
+            return delegate.executeAsync(request);
+        return CompletableFuture.supplyAsync(() -> null,
+                    CompletableFuture.delayedExecutor(wait,
+                                                      TimeUnit.NANOSECONDS))
+                .thenCompose(ignored -> delegate.executeAsync(request));
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limits on the requests of a client, overall and per
+ * resource class.
+ *
+ * Every request takes a token from the client bucket, if one was set with
+ * {@link #setClientLimit}, and from the bucket of its resource class, if
+ * one was set with {@link #setLimit}. The resource classes are:
+ *
+ * <ul>
+ * <li>TASK: /task, /task_list and everything under /task/</li>
+ * <li>ENDPOINT_LS: /endpoint/&lt;name&gt;/ls</li>
+ * <li>TRANSFER: /transfer</li>
+ * <li>SUBMISSION_ID: /submission_id</li>
+ * </ul>
+ *
+ * When a bucket is empty, the request waits for a token for up to the
+ * acquire timeout: -1 waits as long as needed, 0 fails fast, and a
+ * positive value waits at most that many milliseconds. Requests that
+ * would have to wait longer are rejected with a
+ * {@link RequestRejectedException} without waiting.
+ *
+ * Buckets are lock-free: a token is reserved with a single compare and
+ * set on the time the bucket is next empty, and the request then waits
+ * out its reservation without holding anything.
+ */
+public class RateLimiter {
+    public static final String TASK = "task";
+    public static final String ENDPOINT_LS = "endpoint_ls";
+    public static final String TRANSFER = "transfer";
+    public static final String SUBMISSION_ID = "submission_id";
+    /** Stats key for the client bucket. */
+    public static final String CLIENT = "client";
+
+    public static final long WAIT_FOREVER = -1;
+    public static final long FAIL_FAST = 0;
+
+    private volatile TokenBucket clientBucket;
+    private final ConcurrentMap<String, TokenBucket> buckets =
+                                new ConcurrentHashMap<String, TokenBucket>();
+    private volatile long acquireTimeout = WAIT_FOREVER;
+
+    /**
+     * Limit all requests of the client.
+     *
+     * @param permitsPerSecond  sustained request rate.
+     * @param burst  number of requests that can be sent at once after a
+     *               quiet period.
+     */
+    public void setClientLimit(double permitsPerSecond, int burst) {
+        this.clientBucket = new TokenBucket(permitsPerSecond, burst);
+    }
+
+    /**
+     * Limit the requests of a resource class, one of the class constants.
+     */
+    public void setLimit(String resourceClass, double permitsPerSecond,
+                         int burst) {
+        buckets.put(resourceClass, new TokenBucket(permitsPerSecond, burst));
+    }
+
+    public void removeLimit(String resourceClass) {
+        buckets.remove(resourceClass);
+    }
+
+    /**
+     * @param milliseconds  WAIT_FOREVER, FAIL_FAST, or the longest time a
+     *                      request may wait for a token.
+     */
+    public void setAcquireTimeout(long milliseconds) {
+        this.acquireTimeout = milliseconds;
+    }
+
+    public long getAcquireTimeout() {
+        return this.acquireTimeout;
+    }
+
+    /**
+     * The resource class of an API resource path, or null if it isn't in
+     * any class.
+     */
+    public static String resourceClass(String resource) {
+        if (resource == null)
+            return null;
+        if (resource.startsWith("/task"))
+            return TASK;
+        if (resource.startsWith("/endpoint/") && resource.endsWith("/ls"))
+            return ENDPOINT_LS;
+        if (resource.equals("/transfer"))
+            return TRANSFER;
+        if (resource.equals("/submission_id"))
+            return SUBMISSION_ID;
+        return null;
+    }
+
+    /**
+     * Reserve the tokens for a request. A request that won't be sent after
+     * all should give them back with {@link #cancel}.
+     *
+     * @return the reservation, with how long the request must wait
+     *         before it is sent.
+     * @throws RequestRejectedException if it would have to wait longer
+     *         than the acquire timeout.
+     */
+    public Reservation reserve(TransportRequest request)
+            throws RequestRejectedException {
+        long timeout = this.acquireTimeout;
+        long maxWait = timeout < 0 ? Long.MAX_VALUE
+                                   : TimeUnit.MILLISECONDS.toNanos(timeout);
+        long now = System.nanoTime();
+
+        String resourceClass = resourceClass(request.getResource());
+        TokenBucket classBucket = resourceClass == null ? null
+                                        : buckets.get(resourceClass);
+        long classWait = 0;
+        if (classBucket != null) {
+            classWait = classBucket.reserve(now, maxWait);
+            if (classWait < 0)
+                throw rejected(resourceClass, request);
+        }
+
+        TokenBucket clientBucket = this.clientBucket;
+        long clientWait = 0;
+        if (clientBucket != null) {
+            clientWait = clientBucket.reserve(now, maxWait);
+            if (clientWait < 0) {
+                if (classBucket != null)
+                    classBucket.cancel(classWait);
+                throw rejected(CLIENT, request);
+            }
+        }
+        return new Reservation(classBucket, classWait,
+                               clientBucket, clientWait);
+    }
+
+    /**
+     * Give back the tokens of a request that was not sent, for example
+     * because it was interrupted while waiting.
+     */
+    public void cancel(TransportRequest request, Reservation reservation) {
+        reservation.cancel();
+    }
+
+    private static RequestRejectedException rejected(String bucket,
+                                                TransportRequest request) {
+        return new RequestRejectedException("Rate limit (" + bucket
+                                            + ") exceeded for "
+                                            + request.getMethod() + " "
+                                            + request.getResource());
+    }
+
+    public Stats getStats() {
+        Map<String, BucketStats> stats = new TreeMap<String, BucketStats>();
+        TokenBucket clientBucket = this.clientBucket;
+        if (clientBucket != null)
+            stats.put(CLIENT, clientBucket.stats());
+        for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().stats());
+        }
+        return new Stats(stats);
+    }
+
+    /**
+     * A token bucket kept as the time at which it was, or will be, empty
+     * (the "theoretical arrival time" of the generic cell rate
+     * algorithm). It holds one token per interval elapsed since then, up
+     * to burst tokens. Taking a token moves that time forward by one
+     * interval; if that puts it in the future, the request waits until
+     * then.
+     */
+    private static class TokenBucket {
+        private final long interval;
+        private final long capacity;
+        private final AtomicLong emptyAt;
+
+        private final AtomicLong acquired = new AtomicLong();
+        private final AtomicLong delayed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        TokenBucket(double permitsPerSecond, int burst) {
+            if (permitsPerSecond <= 0 || burst < 1)
+                throw new IllegalArgumentException(
+                                "need permitsPerSecond > 0 and burst >= 1");
+            this.interval = Math.max(1, (long) (1e9 / permitsPerSecond));
+            this.capacity = this.interval * burst;
+            this.emptyAt = new AtomicLong(System.nanoTime() - capacity);
+        }
+
+        /**
+         * @return the wait in nanoseconds, or -1 if it would be longer
+         *         than maxWait, in which case nothing is reserved.
+         */
+        long reserve(long now, long maxWait) {
+            while (true) {
+                long current = emptyAt.get();
+                long next = Math.max(current, now - capacity) + interval;
+                long wait = Math.max(0, next - now);
+                if (wait > maxWait) {
+                    rejected.incrementAndGet();
+                    return -1;
+                }
+                if (emptyAt.compareAndSet(current, next)) {
+                    acquired.incrementAndGet();
+                    if (wait > 0) {
+                        delayed.incrementAndGet();
+                        waitNanos.addAndGet(wait);
+                    }
+                    return wait;
+                }
+            }
+        }
+
+        /**
+         * Give back a reserved token.
+         */
+        void cancel(long wait) {
+            emptyAt.addAndGet(-interval);
+            acquired.decrementAndGet();
+            if (wait > 0) {
+                delayed.decrementAndGet();
+                waitNanos.addAndGet(-wait);
+            }
+        }
+
+        BucketStats stats() {
+            return new BucketStats(acquired.get(), delayed.get(),
+                                   rejected.get(), waitNanos.get());
+        }
+    }
+
+    /**
+     * The tokens reserved for one request. It remembers the buckets it
+     * was taken from, so a limit replaced in the meantime isn't credited.
+     */
+    public static final class Reservation {
+        private final TokenBucket classBucket;
+        private final long classWait;
+        private final TokenBucket clientBucket;
+        private final long clientWait;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        Reservation(TokenBucket classBucket, long classWait,
+                    TokenBucket clientBucket, long clientWait) {
+            this.classBucket = classBucket;
+            this.classWait = classWait;
+            this.clientBucket = clientBucket;
+            this.clientWait = clientWait;
+        }
+
+        /**
+         * How long the request must wait before it is sent, in
+         * nanoseconds. The reservations run concurrently, so the longest
+         * one counts.
+         */
+        public long getWaitNanos() {
+            return Math.max(classWait, clientWait);
+        }
+
+        void cancel() {
+            if (!cancelled.compareAndSet(false, true))
+                return;
+            if (classBucket != null)
+                classBucket.cancel(classWait);
+            if (clientBucket != null)
+                clientBucket.cancel(clientWait);
+        }
+    }
+
+    public static class BucketStats {
+        private final long acquired;
+        private final long delayed;
+        private final long rejected;
+        private final long waitNanos;
+
+        BucketStats(long acquired, long delayed, long rejected,
+                    long waitNanos) {
+            this.acquired = acquired;
+            this.delayed = delayed;
+            this.rejected = rejected;
+            this.waitNanos = waitNanos;
+        }
+
+        /** Number of tokens handed out. */
+        public long getAcquired() { return acquired; }
+        /** Number of requests that had to wait for their token. */
+        public long getDelayed() { return delayed; }
+        /** Number of requests rejected for exceeding the timeout. */
+        public long getRejected() { return rejected; }
+        /** Total time requests waited for a token, in milliseconds. */
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        }
+
+        public String toString() {
+            return "acquired=" + acquired + " delayed=" + delayed
+                   + " rejected=" + rejected
+                   + " waitMillis=" + getWaitMillis();
+        }
+    }
+
+    public static class Stats {
+        private final Map<String, BucketStats> buckets;
+
+        Stats(Map<String, BucketStats> buckets) {
+            this.buckets = Collections.unmodifiableMap(buckets);
+        }
+
+        /**
+         * Stats by bucket: CLIENT and the limited resource classes.
+         */
+        public Map<String, BucketStats> getBuckets() { return buckets; }
+
+        /** Total time requests waited for tokens, in milliseconds. */
+        public long getWaitMillis() {
+            long total = 0;
+            for (BucketStats stats : buckets.values())
+                total += stats.waitNanos;
+            return TimeUnit.NANOSECONDS.toMillis(total);
+        }
+
+        public String toString() {
+            return buckets.toString();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler that orders the requests of one or more clients by priority
+ * class, ahead of the connection pool.
+ *
+ * At most maxConcurrent requests are sent at once. The others wait in one
+ * queue per priority class, and when a slot frees up the next request is
+ * picked by weighted fair queuing: under contention, each class gets a
+ * share of the slots in proportion to its weight. By default INTERACTIVE
+ * has weight 16, NORMAL 4 and BULK 1, so an interactive request jumps
+ * ahead of a backlog of bulk ones, while bulk work still gets one slot in
+ * 21 however much interactive work there is.
+ *
+ * A request's class is the one set with
+ * {@link TransportRequest#setPriority}, which clients do for all their
+ * requests if given a priority with
+ * {@link BaseTransferAPIClient#setPriority}. Otherwise it is the class
+ * set for the request's resource class, see {@link RateLimiter}: by
+ * default TRANSFER and SUBMISSION_ID requests are INTERACTIVE, TASK
+ * requests BULK, and everything else NORMAL.
+ *
+ * When a {@link ConcurrencyLimiter} is also used, the scheduler should
+ * allow fewer requests than the limiter, since requests wait in the
+ * limiter in arrival order.
+ */
+public class RequestScheduler {
+    public static final String INTERACTIVE = "interactive";
+    public static final String NORMAL = "normal";
+    public static final String BULK = "bulk";
+
+    public static final int DEFAULT_MAX_CONCURRENT =
+                                        ConnectionPool.DEFAULT_MAX_PER_ROUTE;
+
+    private final int maxConcurrent;
+    private final ConcurrentMap<String, String> priorities =
+                                new ConcurrentHashMap<String, String>();
+
+    // Guarded by this.
+    private int inFlight;
+    // Virtual time: the start tag of the request last sent.
+    private double virtualTime;
+    private final Map<String, PriorityClass> classes =
+                                new HashMap<String, PriorityClass>();
+
+    public RequestScheduler() {
+        this(DEFAULT_MAX_CONCURRENT);
+    }
+
+    /**
+     * @param maxConcurrent  requests sent at once.
+     */
+    public RequestScheduler(int maxConcurrent) {
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("maxConcurrent must be >= 1");
+        this.maxConcurrent = maxConcurrent;
+        setWeight(INTERACTIVE, 16);
+        setWeight(NORMAL, 4);
+        setWeight(BULK, 1);
+        setPriority(RateLimiter.TRANSFER, INTERACTIVE);
+        setPriority(RateLimiter.SUBMISSION_ID, INTERACTIVE);
+        setPriority(RateLimiter.TASK, BULK);
+    }
+
+    public int getMaxConcurrent() {
+        return this.maxConcurrent;
+    }
+
+    /**
+     * Set the weight of a priority class, adding the class if it is new.
+     */
+    public synchronized void setWeight(String priority, int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("weight must be >= 1");
+        PriorityClass priorityClass = classes.get(priority);
+        if (priorityClass == null)
+            classes.put(priority, new PriorityClass(weight));
+        else
+            priorityClass.weight = weight;
+    }
+
+    /**
+     * Set the priority class of requests in a resource class, for requests
+     * that don't have a priority of their own.
+     */
+    public void setPriority(String resourceClass, String priority) {
+        priorities.put(resourceClass, priority);
+    }
+
+    /**
+     * The priority class a request is queued in.
+     */
+    public String priority(TransportRequest request) {
+        String priority = request.getPriority();
+        if (priority != null)
+            return priority;
+        String resourceClass = RateLimiter.resourceClass(
+                                                request.getResource());
+        if (resourceClass != null) {
+            priority = priorities.get(resourceClass);
+            if (priority != null)
+                return priority;
+        }
+        return NORMAL;
+    }
+
+    /**
+     * Wait for the request's turn.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Permit acquire(TransportRequest request)
+            throws InterruptedException {
+        try {
+            return PermitQueue.await(acquireAsync(request),
+                                     PermitQueue.WAIT_FOREVER, this::giveUp,
+                                     Permit::release, null);
+        } catch (RequestRejectedException e) {
+            // Turns are never completed exceptionally.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the request's turn without blocking.
+     */
+    public CompletableFuture<Permit> acquireAsync(TransportRequest request) {
+        String priority = priority(request);
+        CompletableFuture<Permit> turn = new CompletableFuture<Permit>();
+        synchronized (this) {
+            PriorityClass priorityClass = classes.get(priority);
+            if (priorityClass == null)
+                throw new IllegalArgumentException(
+                                    "Unknown priority class " + priority);
+            double start = Math.max(virtualTime, priorityClass.nextStart);
+            priorityClass.nextStart = start + 1.0 / priorityClass.weight;
+            if (inFlight < maxConcurrent) {
+                inFlight++;
+                virtualTime = start;
+                priorityClass.sent++;
+                turn.complete(new Permit());
+                return turn;
+            }
+            priorityClass.queue.add(new Waiter(turn, start));
+            priorityClass.queued++;
+        }
+        return turn;
+    }
+
+    /**
+     * Take a waiter that stopped waiting off its queue.
+     *
+     * @return false if it was given its turn meanwhile.
+     */
+    private synchronized boolean giveUp(CompletableFuture<Permit> turn) {
+        for (PriorityClass priorityClass : classes.values()) {
+            for (Waiter waiter : priorityClass.queue) {
+                if (waiter.turn == turn) {
+                    priorityClass.queue.remove(waiter);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void release() {
+        Waiter next = null;
+        PriorityClass nextClass = null;
+        synchronized (this) {
+            // The head with the earliest start tag goes next.
+            for (PriorityClass priorityClass : classes.values()) {
+                Waiter head = priorityClass.queue.peek();
+                if (head != null && (next == null || head.start < next.start)) {
+                    next = head;
+                    nextClass = priorityClass;
+                }
+            }
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+            nextClass.queue.poll();
+            nextClass.sent++;
+            virtualTime = next.start;
+            nextClass.waitNanos += System.nanoTime() - next.queuedAt;
+        }
+        // Outside the lock: completing runs the waiter's dependent stages.
+        PermitQueue.handOver(next.turn, new Permit(), Permit::release);
+    }
+
+    /**
+     * Handed out for each request sent; released exactly once when the
+     * request is done, which gives its slot to the next request.
+     */
+    public class Permit {
+        public void release() {
+            RequestScheduler.this.release();
+        }
+    }
+
+    private static class Waiter {
+        final CompletableFuture<Permit> turn;
+        final double start;
+        final long queuedAt = System.nanoTime();
+
+        Waiter(CompletableFuture<Permit> turn, double start) {
+            this.turn = turn;
+            this.start = start;
+        }
+    }
+
+    private static class PriorityClass {
+        int weight;
+        // Start tag of the next request of this class.
+        double nextStart;
+        final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+        long sent;
+        long queued;
+        long waitNanos;
+
+        PriorityClass(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    public synchronized Map<String, ClassStats> getStats() {
+        Map<String, ClassStats> stats = new TreeMap<String, ClassStats>();
+        for (Map.Entry<String, PriorityClass> entry : classes.entrySet()) {
+            PriorityClass priorityClass = entry.getValue();
+            stats.put(entry.getKey(),
+                      new ClassStats(priorityClass.weight,
+                                     priorityClass.queue.size(),
+                                     priorityClass.sent,
+                                     priorityClass.queued,
+                                     priorityClass.waitNanos));
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    public static class ClassStats {
+        private final int weight;
+        private final int queueDepth;
+        private final long sent;
+        private final long queued;
+        private final long waitNanos;
+
+        ClassStats(int weight, int queueDepth, long sent, long queued,
+                   long waitNanos) {
+            this.weight = weight;
+            this.queueDepth = queueDepth;
+            this.sent = sent;
+            this.queued = queued;
+            this.waitNanos = waitNanos;
+        }
+
+        public int getWeight() { return weight; }
+        public int getQueueDepth() { return queueDepth; }
+        /** Number of requests sent. */
+        public long getSent() { return sent; }
+        /** Number of requests that had to wait for their turn. */
+        public long getQueued() { return queued; }
+        /** Total time requests waited, in milliseconds. */
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        }
+
+        public String toString() {
+            return "weight=" + weight + " queueDepth=" + queueDepth
+                   + " sent=" + sent + " queued=" + queued
+                   + " waitMillis=" + getWaitMillis();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Cache of parsed GET responses, revalidated with the server using their
+ * ETag or Last-Modified validators.
+ *
+ * Only responses that carry a validator are stored. When a request for a
+ * cached resource is made, the client sends If-None-Match and
+ * If-Modified-Since, and if the server answers 304 Not Modified the
+ * cached Result is served without downloading the document again. Responses with Cache-Control: no-store are not cached, and
+ * POST, PUT and DELETE requests drop the cached responses for their
+ * path and the paths below it.
+ *
+ * The cache is bounded both by number of entries and by the total size
+ * of the cached documents, as received, evicting the least recently used
+ * entries first.
+ *
+ * The cache keeps the text of each document and every hit gets a
+ * JSONObject parsed from it, so a caller may change the document it is
+ * given without affecting the others.
+ */
+public class ResponseCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // Guarded by itself. Lookups and stores are short, and the lock is
+    // only taken by GETs with caching enabled.
+    private final LinkedHashMap<String, Entry> entries =
+                new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResponseCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxEntries  maximum number of cached responses.
+     * @param maxBytes  maximum total size of the cached response bodies.
+     */
+    public ResponseCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1)
+            throw new IllegalArgumentException("invalid cache bounds");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * A cached response and its validators.
+     */
+    static class Entry {
+        final String path;
+        final String etag;
+        final String lastModified;
+        final int statusCode;
+        final String statusMessage;
+        final String text;
+        final long size;
+
+        Entry(String path, TransportResponse response, String text,
+              long size) {
+            this.path = path;
+            this.etag = response.getHeader("ETag");
+            this.lastModified = response.getHeader("Last-Modified");
+            this.statusCode = response.getStatusCode();
+            this.statusMessage = response.getStatusMessage();
+            this.text = text;
+            this.size = size;
+        }
+
+        /**
+         * A new Result with its own copy of the cached document.
+         */
+        JSONTransferAPIClient.Result result() throws JSONException {
+            return JSONTransferAPIClient.Result.of(statusCode, statusMessage,
+                                                   new JSONObject(text));
+        }
+    }
+
+    Entry get(String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    /**
+     * Add the validators of a cached response to a request for it.
+     */
+    static void addConditions(TransportRequest request, Entry entry) {
+        if (entry.etag != null)
+            request.setHeader("If-None-Match", entry.etag);
+        if (entry.lastModified != null)
+            request.setHeader("If-Modified-Since", entry.lastModified);
+    }
+
+    /**
+     * Remove the validators from a request, so it gets a full response.
+     */
+    static void removeConditions(TransportRequest request) {
+        request.removeHeader("If-None-Match");
+        request.removeHeader("If-Modified-Since");
+    }
+
+    /**
+     * Whether a response may be stored, judging by its headers.
+     */
+    static boolean isCacheable(TransportResponse response) {
+        if (response.getStatusCode() != 200)
+            return false;
+        if (response.getHeader("ETag") == null
+            && response.getHeader("Last-Modified") == null)
+            return false;
+        String cacheControl = response.getHeader("Cache-Control");
+        return cacheControl == null
+               || !cacheControl.toLowerCase(Locale.ROOT)
+                                .contains("no-store");
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Parse the document of a full response, and store it if the response
+     * is cacheable.
+     */
+    JSONTransferAPIClient.Result read(String key, TransportRequest request,
+                                      TransportResponse response)
+            throws IOException, JSONException {
+        misses.incrementAndGet();
+        CountingStream in = new CountingStream(response.getBody());
+        JSONObject document = JSONTransferAPIClient.readDocument(in);
+        // Store the text before the caller can change the document.
+        if (isCacheable(response))
+            put(key, new Entry(request.getURI().getPath(), response,
+                               document.toString(), in.count));
+        return JSONTransferAPIClient.Result.of(response.getStatusCode(),
+                                               response.getStatusMessage(),
+                                               document);
+    }
+
+    private void put(String key, Entry entry) {
+        long size = entry.size;
+        if (size > maxBytes)
+            return;
+        synchronized (entries) {
+            Entry old = entries.put(key, entry);
+            if (old != null)
+                bytes -= old.size;
+            bytes += size;
+            evict();
+        }
+        stores.incrementAndGet();
+    }
+
+    /**
+     * Drop the cached responses for a path and the paths below it,
+     * whatever their query: changing /endpoint/x also changes what
+     * /endpoint/x/ls returns.
+     */
+    void invalidate(String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.path.equals(path)
+                    || entry.path.startsWith(prefix)) {
+                    bytes -= entry.size;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes)
+               && it.hasNext()) {
+            Entry eldest = it.next();
+            bytes -= eldest.size;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static class CountingStream extends FilterInputStream {
+        long count;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+    }
+
+    public Stats getStats() {
+        int size;
+        long currentBytes;
+        synchronized (entries) {
+            size = entries.size();
+            currentBytes = bytes;
+        }
+        return new Stats(hits.get(), misses.get(), stores.get(),
+                         evictions.get(), size, currentBytes);
+    }
+
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long stores;
+        private final long evictions;
+        private final int entries;
+        private final long bytes;
+
+        Stats(long hits, long misses, long stores, long evictions,
+              int entries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.stores = stores;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        /** Number of requests answered 304 and served from the cache. */
+        public long getHits() { return hits; }
+        /** Number of cacheable requests that downloaded the document. */
+        public long getMisses() { return misses; }
+        public long getStores() { return stores; }
+        public long getEvictions() { return evictions; }
+        public int getEntries() { return entries; }
+        /** Total size of the cached response bodies. */
+        public long getBytes() { return bytes; }
+
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses
+                   + " stores=" + stores + " evictions=" + evictions
+                   + " entries=" + entries + " bytes=" + bytes;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When and how long to wait before retrying a failed request.
+ *
+ * Requests are retried if they failed with an I/O error or with an error
+ * in one of the retryable categories (by default ServiceUnavailable and
+ * ServerError, plus 429 Too Many Requests), and only if they are
+ * idempotent, see {@link TransportRequest#isIdempotent}. The delay between
+ * attempts uses decorrelated jitter: a random value between the base delay
+ * and three times the previous delay (the base delay for the first
+ * retry), capped at the maximum delay. A
+ * Retry-After header from the server sets a lower bound on the delay.
+ *
+ * Retries are limited by a budget shared by all requests of a client:
+ * every request adds budgetRatio of a retry to the budget, up to a
+ * maximum, and every retry takes one away. During an outage this keeps
+ * retries to a fraction of the traffic rather than multiplying it by
+ * maxAttempts.
+ */
+public class RetryPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BASE_DELAY = 100; // milliseconds
+    public static final long DEFAULT_MAX_DELAY = 10 * 1000;
+    public static final long DEFAULT_MAX_RETRY_AFTER = 60 * 1000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.2;
+    public static final int DEFAULT_BUDGET_RETRIES = 10;
+
+    /** Category recorded for requests that failed with an IOException. */
+    public static final String NETWORK_ERROR = "NetworkError";
+    /** Category recorded for 429 Too Many Requests. */
+    public static final String TOO_MANY_REQUESTS = "TooManyRequests";
+
+    // Budget amounts are in thousandths of a retry, so the budget can be
+    // kept in a single AtomicLong.
+    private static final long RETRY_COST = 1000;
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final long maxRetryAfter;
+    private final long budgetDeposit;
+    private final long budgetMax;
+    private final Set<String> retryableCategories;
+
+    private final AtomicLong budget;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong givenUp = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> retriesByCategory =
+                                new ConcurrentHashMap<String, AtomicLong>();
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this(maxAttempts, baseDelay, maxDelay, DEFAULT_MAX_RETRY_AFTER,
+             DEFAULT_BUDGET_RATIO, DEFAULT_BUDGET_RETRIES,
+             new String[] { APIError.SERVICE_UNAVAILABLE,
+                            APIError.SERVER_ERROR });
+    }
+
+    /**
+     * @param maxAttempts  maximum number of attempts per request, the
+     *                     first one included.
+     * @param baseDelay  minimum delay between attempts, in milliseconds.
+     * @param maxDelay  maximum delay between attempts, in milliseconds.
+     * @param maxRetryAfter  requests are not retried if the server asks to
+     *                       wait longer than this, in milliseconds.
+     * @param budgetRatio  retries earned by each request.
+     * @param budgetRetries  retries the budget starts with, which is
+     *                       also the most it can hold.
+     * @param retryableCategories  APIError categories to retry.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+                       long maxRetryAfter, double budgetRatio,
+                       int budgetRetries, String[] retryableCategories) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be >= 1");
+        if (baseDelay < 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException(
+                                    "need 0 <= baseDelay <= maxDelay");
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxRetryAfter = maxRetryAfter;
+        this.budgetDeposit = Math.round(budgetRatio * RETRY_COST);
+        this.budgetMax = budgetRetries * RETRY_COST;
+        this.budget = new AtomicLong(budgetRetries * RETRY_COST);
+        this.retryableCategories = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(retryableCategories)));
+    }
+
+    public int getMaxAttempts() { return this.maxAttempts; }
+    public long getBaseDelay() { return this.baseDelay; }
+    public long getMaxDelay() { return this.maxDelay; }
+    public Set<String> getRetryableCategories() {
+        return this.retryableCategories;
+    }
+
+    /**
+     * Called once per request, before the first attempt.
+     */
+    void requestStarted() {
+        requests.incrementAndGet();
+        while (true) {
+            long current = budget.get();
+            long next = Math.min(budgetMax, current + budgetDeposit);
+            if (next == current || budget.compareAndSet(current, next))
+                return;
+        }
+    }
+
+    /**
+     * The category of a failed response, or null if it should not be
+     * retried whatever the request.
+     */
+    String retryCategory(TransportResponse response) {
+        int status = response.getStatusCode();
+        if (status == 429)
+            return TOO_MANY_REQUESTS;
+        if (status < 500)
+            return null;
+        String category = APIError.category(
+                                response.getHeader("X-Transfer-API-Error"));
+        if (category == null)
+            category = APIError.SERVER_ERROR;
+        return this.retryableCategories.contains(category) ? category : null;
+    }
+
+    /**
+     * Decide whether to make another attempt, and take a retry from the
+     * budget if so.
+     *
+     * @param attempt  the number of attempts made so far.
+     * @param category  the category of the failure, or null if it isn't
+     *                  retryable.
+     * @param retryAfter  the delay the server asked for in milliseconds,
+     *                    or -1.
+     * @return the delay before the next attempt in milliseconds, or -1 to
+     *         give up.
+     */
+    long nextDelay(TransportRequest request, int attempt, long lastDelay,
+                   String category, long retryAfter) {
+        if (category == null)
+            return -1;
+        if (attempt >= this.maxAttempts || !request.isIdempotent()
+            || retryAfter > this.maxRetryAfter) {
+            givenUp.incrementAndGet();
+            return -1;
+        }
+        if (!takeRetry()) {
+            budgetExhausted.incrementAndGet();
+            givenUp.incrementAndGet();
+            return -1;
+        }
+        retries.incrementAndGet();
+        AtomicLong count = retriesByCategory.get(category);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = retriesByCategory.putIfAbsent(category, created);
+            if (count == null)
+                count = created;
+        }
+        count.incrementAndGet();
+
+        // The first retry draws from base to three times base, so clients
+        // that failed together don't retry together.
+        long previous = lastDelay > 0 ? lastDelay : this.baseDelay;
+        long upper = Math.max(this.baseDelay, previous * 3);
+        long delay = Math.min(this.maxDelay,
+                              this.baseDelay + ThreadLocalRandom.current()
+                                    .nextLong(upper - this.baseDelay + 1));
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * Called when a request succeeded after being retried.
+     */
+    void recovered() {
+        recovered.incrementAndGet();
+    }
+
+    private boolean takeRetry() {
+        while (true) {
+            long current = budget.get();
+            if (current < RETRY_COST)
+                return false;
+            if (budget.compareAndSet(current, current - RETRY_COST))
+                return true;
+        }
+    }
+
+    /**
+     * Parse a Retry-After header, either a number of seconds or an HTTP
+     * date.
+     *
+     * @return the delay in milliseconds, or -1 if there is no valid header.
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null)
+            return -1;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // Not seconds, try a date.
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value,
+                                    DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli()
+                               - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    public Stats getStats() {
+        Map<String, Long> byCategory = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry
+                                : retriesByCategory.entrySet()) {
+            byCategory.put(entry.getKey(), entry.getValue().get());
+        }
+        return new Stats(requests.get(), retries.get(), recovered.get(),
+                         givenUp.get(), budgetExhausted.get(),
+                         (double) budget.get() / RETRY_COST, byCategory);
+    }
+
+    public static class Stats {
+        private final long requests;
+        private final long retries;
+        private final long recovered;
+        private final long givenUp;
+        private final long budgetExhausted;
+        private final double budget;
+        private final Map<String, Long> retriesByCategory;
+
+        Stats(long requests, long retries, long recovered, long givenUp,
+              long budgetExhausted, double budget,
+              Map<String, Long> retriesByCategory) {
+            this.requests = requests;
+            this.retries = retries;
+            this.recovered = recovered;
+            this.givenUp = givenUp;
+            this.budgetExhausted = budgetExhausted;
+            this.budget = budget;
+            this.retriesByCategory =
+                        Collections.unmodifiableMap(retriesByCategory);
+        }
+
+        public long getRequests() { return requests; }
+        /** Number of attempts after the first, over all requests. */
+        public long getRetries() { return retries; }
+        /** Number of requests that succeeded after a retry. */
+        public long getRecovered() { return recovered; }
+        /** Number of retryable failures that were not retried. */
+        public long getGivenUp() { return givenUp; }
+        /** Number of retries refused because the budget was empty. */
+        public long getBudgetExhausted() { return budgetExhausted; }
+        /** Retries currently available in the budget. */
+        public double getBudget() { return budget; }
+        /**
+         * Retries by failure category: an APIError category,
+         * NETWORK_ERROR or TOO_MANY_REQUESTS.
+         */
+        public Map<String, Long> getRetriesByCategory() {
+            return retriesByCategory;
+        }
+
+        public String toString() {
+            return "requests=" + requests + " retries=" + retries
+                   + " recovered=" + recovered + " givenUp=" + givenUp
+                   + " budgetExhausted=" + budgetExhausted
+                   + " budget=" + String.format("%.1f", budget)
+                   + " byCategory=" + retriesByCategory;
+        }
+    }
+}
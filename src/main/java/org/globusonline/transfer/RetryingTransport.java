@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport that retries failed requests on another transport, as
+ * decided by a {@link RetryPolicy}.
+ *
+ * If the last attempt failed with an error status, that response is
+ * returned as is, so the client reports the error the server sent.
+ * Asynchronous retries are scheduled after the delay rather than holding
+ * a thread while waiting, and stop once the caller cancels the future.
+ */
+public class RetryingTransport implements Transport {
+    private final Transport delegate;
+    private final RetryPolicy policy;
+
+    public RetryingTransport(Transport delegate, RetryPolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+
+    public Transport getDelegate() { return this.delegate; }
+    public RetryPolicy getPolicy() { return this.policy; }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        policy.requestStarted();
+        int attempt = 0;
+        long delay = 0;
+        while (true) {
+            attempt++;
+            TransportResponse response;
+            try {
+                response = delegate.execute(request);
+            } catch (IOException e) {
+                if (!isRetryable(e))
+                    throw e;
+                delay = policy.nextDelay(request, attempt, delay,
+                                         RetryPolicy.NETWORK_ERROR, -1);
+                if (delay < 0)
+                    throw e;
+                sleep(delay, request);
+                continue;
+            }
+
+            String category = policy.retryCategory(response);
+            if (category == null) {
+                if (attempt > 1 && response.getStatusCode() < 400)
+                    policy.recovered();
+                return response;
+            }
+            long retryAfter = RetryPolicy.parseRetryAfter(
+                                        response.getHeader("Retry-After"));
+            delay = policy.nextDelay(request, attempt, delay, category,
+                                     retryAfter);
+            if (delay < 0)
+                return response;
+            response.close();
+            sleep(delay, request);
+        }
+    }
+
+    public CompletableFuture<TransportResponse> executeAsync(
+                                                TransportRequest request) {
+        policy.requestStarted();
+        CompletableFuture<TransportResponse> result =
+                                new CompletableFuture<TransportResponse>();
+        attempt(request, 1, 0, result);
+        return result;
+    }
+
+    private void attempt(final TransportRequest request, final int attempt,
+                         final long lastDelay,
+                         final CompletableFuture<TransportResponse> result) {
+        delegate.executeAsync(request).whenComplete((response, error) -> {
+            if (result.isDone()) {
+                // Cancelled by the caller; nobody will read the response.
+                if (response != null)
+                    response.close();
+                return;
+            }
+            long delay;
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                if (!(cause instanceof IOException)
+                    || !isRetryable((IOException) cause)) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                delay = policy.nextDelay(request, attempt, lastDelay,
+                                         RetryPolicy.NETWORK_ERROR, -1);
+                if (delay < 0) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+            } else {
+                String category = policy.retryCategory(response);
+                if (category == null) {
+                    if (attempt > 1 && response.getStatusCode() < 400)
+                        policy.recovered();
+                    if (!result.complete(response))
+                        response.close();
+                    return;
+                }
+                long retryAfter = RetryPolicy.parseRetryAfter(
+                                        response.getHeader("Retry-After"));
+                delay = policy.nextDelay(request, attempt, lastDelay,
+                                         category, retryAfter);
+                if (delay < 0) {
+                    if (!result.complete(response))
+                        response.close();
+                    return;
+                }
+                response.close();
+            }
+            final long nextDelay = delay;
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                .execute(() -> {
+                    if (!result.isDone())
+                        attempt(request, attempt + 1, nextDelay, result);
+                });
+        });
+    }
+
+    /**
+     * Whether an I/O error may be transient. Interrupts, malformed
+     * requests and requests rejected by a client side policy are not.
+     */
+    protected boolean isRetryable(IOException e) {
+        if (e instanceof RequestRejectedException)
+            return false;
+        if (e instanceof InterruptedIOException)
+            return e instanceof SocketTimeoutException;
+        return !(e instanceof MalformedURLException);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException
+                || error instanceof ExecutionException)
+               && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    private static void sleep(long delay, TransportRequest request)
+            throws InterruptedIOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry "
+                                             + request.getURI());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport that sends requests on another transport in the order a
+ * {@link RequestScheduler} picks.
+ */
+public class ScheduledTransport implements Transport {
+    private final Transport delegate;
+    private final RequestScheduler scheduler;
+
+    public ScheduledTransport(Transport delegate,
+                              RequestScheduler scheduler) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+    }
+
+    public Transport getDelegate() { return this.delegate; }
+    public RequestScheduler getScheduler() { return this.scheduler; }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        RequestScheduler.Permit permit;
+        try {
+            permit = scheduler.acquire(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                                    "Interrupted waiting to send "
+                                    + request.getURI());
+        }
+        try {
+            return delegate.execute(request);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public CompletableFuture<TransportResponse> executeAsync(
+                                        final TransportRequest request) {
+        return scheduler.acquireAsync(request).thenCompose(permit ->
+            delegate.executeAsync(request).whenComplete(
+                            (response, error) -> permit.release()));
+    }
+}
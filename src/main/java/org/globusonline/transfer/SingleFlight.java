@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical concurrent calls into one: the first caller for a
+ * key, the leader, makes the call, and callers arriving while it is in
+ * flight wait for its outcome instead of making their own.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> calls =
+                            new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Join the call in flight for a key, or lead a new one.
+     *
+     * @param call  the future the caller will complete if it leads. It is
+     *              forgotten once completed, so later callers start a new
+     *              call.
+     * @return the call in flight, or null if the caller is the leader and
+     *         must now make the call and complete the future.
+     */
+    public CompletableFuture<V> join(final K key,
+                                     final CompletableFuture<V> call) {
+        CompletableFuture<V> inFlight = calls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            hits.incrementAndGet();
+            return inFlight;
+        }
+        leaders.incrementAndGet();
+        call.whenComplete((value, error) -> calls.remove(key, call));
+        return null;
+    }
+
+    public Stats getStats() {
+        return new Stats(leaders.get(), hits.get(), calls.size());
+    }
+
+    public static class Stats {
+        private final long leaders;
+        private final long hits;
+        private final int inFlight;
+
+        Stats(long leaders, long hits, int inFlight) {
+            this.leaders = leaders;
+            this.hits = hits;
+            this.inFlight = inFlight;
+        }
+
+        /** Number of calls actually made. */
+        public long getCalls() { return leaders; }
+        /** Number of callers served by another caller's call. */
+        public long getHits() { return hits; }
+        /** Number of calls currently in flight. */
+        public int getInFlight() { return inFlight; }
+
+        public String toString() {
+            return "calls=" + leaders + " hits=" + hits
+                   + " inFlight=" + inFlight;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.security.GeneralSecurityException;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Long-lived TLS contexts, so that clients get abbreviated handshakes
+ * (session resumption) across connections and across client instances.
+ *
+ * The TLS session cache belongs to an SSLContext, so a client that builds
+ * its own context starts with an empty cache. This class keeps the
+ * contexts instead, keyed by the credentials they were built from, and
+ * hands the same one to every client with the same credentials. By
+ * default all clients share {@link #getDefault()}.
+ *
+ * It also counts full and resumed handshakes on the connections it
+ * creates, to check that resumption actually happens.
+ */
+public class TLSSessionCache {
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60; // seconds
+    public static final int DEFAULT_MAX_CONTEXTS = 64;
+
+    private static final TLSSessionCache DEFAULT = new TLSSessionCache();
+
+    private volatile int cacheSize;
+    private volatile int sessionTimeout;
+    private final int maxContexts;
+
+    // Only used when a client creates its socket factory, never per
+    // request, so a synchronized LRU map is good enough.
+    private final Map<Object, CachedContext> contexts;
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    public TLSSessionCache() {
+        this(DEFAULT_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT,
+             DEFAULT_MAX_CONTEXTS);
+    }
+
+    /**
+     * @param cacheSize  maximum number of sessions cached per context,
+     *                   0 for no limit.
+     * @param sessionTimeout  seconds a cached session may be resumed for,
+     *                        0 for no limit.
+     * @param maxContexts  maximum number of distinct credential sets to
+     *                     keep contexts for; the least recently used is
+     *                     dropped beyond that.
+     */
+    public TLSSessionCache(int cacheSize, int sessionTimeout,
+                           final int maxContexts) {
+        if (cacheSize < 0 || sessionTimeout < 0 || maxContexts < 1)
+            throw new IllegalArgumentException("invalid cache settings");
+        this.cacheSize = cacheSize;
+        this.sessionTimeout = sessionTimeout;
+        this.maxContexts = maxContexts;
+        this.contexts = new LinkedHashMap<Object, CachedContext>(16, 0.75f,
+                                                                 true) {
+            protected boolean removeEldestEntry(
+                                    Map.Entry<Object, CachedContext> e) {
+                return size() > maxContexts;
+            }
+        };
+    }
+
+    /**
+     * The cache shared by all clients that haven't been given their own.
+     */
+    public static TLSSessionCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get the context for the given credentials, creating it the first
+     * time.
+     *
+     * @param key  identifies the credentials, for example the files they
+     *             were read from. If null, the identity of the key and
+     *             trust managers is used, so only clients passed the same
+     *             manager instances share a context.
+     */
+    public SSLContext getContext(Object key, KeyManager[] keyManagers,
+                                 TrustManager[] trustManagers)
+            throws GeneralSecurityException {
+        return entry(key, keyManagers, trustManagers).context;
+    }
+
+    /**
+     * Get the socket factory for the given credentials. The same factory
+     * instance is returned for the same credentials, which lets the JDK
+     * keep-alive cache reuse connections between clients too.
+     */
+    public SSLSocketFactory getSocketFactory(Object key,
+                                             KeyManager[] keyManagers,
+                                             TrustManager[] trustManagers)
+            throws GeneralSecurityException {
+        return entry(key, keyManagers, trustManagers).socketFactory;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        applySettings();
+    }
+
+    public void setSessionTimeout(int seconds) {
+        this.sessionTimeout = seconds;
+        applySettings();
+    }
+
+    public int getCacheSize() { return this.cacheSize; }
+    public int getSessionTimeout() { return this.sessionTimeout; }
+    public int getMaxContexts() { return this.maxContexts; }
+
+    public Stats getStats() {
+        int size;
+        synchronized (contexts) {
+            size = contexts.size();
+        }
+        return new Stats(fullHandshakes.get(), resumedHandshakes.get(),
+                         size);
+    }
+
+    CachedContext entry(Object key, KeyManager[] keyManagers,
+                                TrustManager[] trustManagers)
+            throws GeneralSecurityException {
+        if (key == null)
+            key = new ManagerKey(keyManagers, trustManagers);
+        synchronized (contexts) {
+            CachedContext entry = contexts.get(key);
+            if (entry == null) {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(keyManagers, trustManagers, null);
+                configure(context);
+                entry = new CachedContext(context,
+                        new CountingSocketFactory(context.getSocketFactory()));
+                contexts.put(key, entry);
+            }
+            return entry;
+        }
+    }
+
+    private void applySettings() {
+        synchronized (contexts) {
+            Iterator<CachedContext> it = contexts.values().iterator();
+            while (it.hasNext()) {
+                configure(it.next().context);
+            }
+        }
+    }
+
+    private void configure(SSLContext context) {
+        SSLSessionContext sessions = context.getClientSessionContext();
+        sessions.setSessionCacheSize(this.cacheSize);
+        sessions.setSessionTimeout(this.sessionTimeout);
+    }
+
+    /** A context and the socket factory built from it. */
+    static final class CachedContext {
+        final SSLContext context;
+        final SSLSocketFactory socketFactory;
+
+        CachedContext(SSLContext context, SSLSocketFactory socketFactory) {
+            this.context = context;
+            this.socketFactory = socketFactory;
+        }
+    }
+
+    /**
+     * Key for contexts built from managers with no other identity.
+     * Managers don't override equals, so this compares the instances.
+     */
+    private static class ManagerKey {
+        private final KeyManager[] keyManagers;
+        private final TrustManager[] trustManagers;
+
+        ManagerKey(KeyManager[] keyManagers, TrustManager[] trustManagers) {
+            this.keyManagers = keyManagers;
+            this.trustManagers = trustManagers;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof ManagerKey))
+                return false;
+            ManagerKey other = (ManagerKey) o;
+            return Arrays.equals(keyManagers, other.keyManagers)
+                   && Arrays.equals(trustManagers, other.trustManagers);
+        }
+
+        public int hashCode() {
+            return 31 * Arrays.hashCode(keyManagers)
+                   + Arrays.hashCode(trustManagers);
+        }
+    }
+
+    /**
+     * Handshake counters for all contexts of a cache.
+     */
+    public static class Stats {
+        private final long full;
+        private final long resumed;
+        private final int contexts;
+
+        Stats(long full, long resumed, int contexts) {
+            this.full = full;
+            this.resumed = resumed;
+            this.contexts = contexts;
+        }
+
+        public long getFullHandshakes() { return full; }
+        public long getResumedHandshakes() { return resumed; }
+        public int getContexts() { return contexts; }
+
+        /** Fraction of handshakes that resumed a cached session. */
+        public double getHitRate() {
+            long total = full + resumed;
+            return total == 0 ? 0.0 : (double) resumed / total;
+        }
+
+        public String toString() {
+            return "fullHandshakes=" + full + " resumedHandshakes=" + resumed
+                   + " hitRate=" + getHitRate() + " contexts=" + contexts;
+        }
+    }
+
+    /**
+     * Socket factory that classifies each completed handshake as full or
+     * resumed.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        public Socket createSocket() throws IOException {
+            return listen(delegate.createSocket());
+        }
+
+        public Socket createSocket(Socket s, String host, int port,
+                                   boolean autoClose) throws IOException {
+            return listen(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        public Socket createSocket(String host, int port) throws IOException {
+            return listen(delegate.createSocket(host, port));
+        }
+
+        public Socket createSocket(String host, int port,
+                                   InetAddress localHost, int localPort)
+                throws IOException {
+            return listen(delegate.createSocket(host, port, localHost,
+                                                localPort));
+        }
+
+        public Socket createSocket(InetAddress host, int port)
+                throws IOException {
+            return listen(delegate.createSocket(host, port));
+        }
+
+        public Socket createSocket(InetAddress address, int port,
+                                   InetAddress localAddress, int localPort)
+                throws IOException {
+            return listen(delegate.createSocket(address, port, localAddress,
+                                                localPort));
+        }
+
+        private Socket listen(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long createdAt = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(
+                        new HandshakeCompletedListener() {
+                    public void handshakeCompleted(
+                                            HandshakeCompletedEvent event) {
+                        // A resumed session was created by an earlier
+                        // handshake, before this socket existed. This
+                        // holds for both TLS 1.2 and 1.3, unlike
+                        // comparing session ids.
+                        if (event.getSession().getCreationTime() < createdAt)
+                            resumedHandshakes.incrementAndGet();
+                        else
+                            fullHandshakes.incrementAndGet();
+                    }
+                });
+            }
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The HTTP engine a client sends its requests with.
+ *
+ * The client builds a {@link TransportRequest} with the full URI, headers
+ * (authentication included) and body, and the transport returns the raw
+ * {@link TransportResponse}; error statuses are not exceptions at this
+ * level, the client turns them into {@link APIError}s. Two transports are
+ * built in: {@link URLConnectionTransport} and {@link HttpClientTransport}.
+ * Others can be plugged in with
+ * {@link BaseTransferAPIClient#setTransport}.
+ */
+public interface Transport {
+    /**
+     * Send a request and wait for the response status and headers. The
+     * caller must close the response.
+     */
+    TransportResponse execute(TransportRequest request) throws IOException;
+
+    /**
+     * Send a request without blocking the calling thread. Transports that
+     * can't do better may run {@link #execute} on another thread.
+     */
+    CompletableFuture<TransportResponse> executeAsync(
+                                                TransportRequest request);
+}
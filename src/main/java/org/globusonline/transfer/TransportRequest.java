@@ -0,0 +1,165 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.URI;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request, independent of the transport that sends it.
+ */
+public class TransportRequest {
+    private final String method;
+    private final URI uri;
+    private final Map<String, String> headers =
+                                        new LinkedHashMap<String, String>();
+    private Body body;
+    private Authenticator connectionAuthenticator;
+    private boolean idempotent;
+    private String resource;
+    private String priority;
+
+    public TransportRequest(String method, URI uri) {
+        this.method = method;
+        this.uri = uri;
+        this.idempotent = method.equals("GET") || method.equals("HEAD")
+                          || method.equals("OPTIONS");
+    }
+
+    public String getMethod() { return this.method; }
+    public URI getURI() { return this.uri; }
+
+    /**
+     * Set a header, replacing any previous value. Header names are case
+     * sensitive here; use the canonical capitalization.
+     */
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    public void removeHeader(String name) {
+        headers.remove(name);
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    public void setBody(Body body) {
+        this.body = body;
+    }
+
+    /**
+     * @return the body, or null if the request has none.
+     */
+    public Body getBody() {
+        return this.body;
+    }
+
+    /**
+     * The API resource, the path relative to the client's base URL and
+     * without the query, such as "/task/123". Used by policies that treat
+     * resources differently; null if the request wasn't built by a client.
+     */
+    public String getResource() {
+        return this.resource;
+    }
+
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    /**
+     * Whether sending the request twice has the same effect as sending it
+     * once, which makes it safe to retry. True by default for GET, HEAD
+     * and OPTIONS only.
+     */
+    public boolean isIdempotent() {
+        return this.idempotent;
+    }
+
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * The priority class a {@link RequestScheduler} queues the request
+     * in, one of its class constants, or null to let the scheduler pick
+     * one from the resource.
+     */
+    public String getPriority() {
+        return this.priority;
+    }
+
+    public void setPriority(String priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Hand authentication over to the transport, for authenticators that
+     * can only authenticate an HttpsURLConnection. Only
+     * {@link URLConnectionTransport} supports this.
+     */
+    public void setConnectionAuthenticator(Authenticator authenticator) {
+        this.connectionAuthenticator = authenticator;
+    }
+
+    public Authenticator getConnectionAuthenticator() {
+        return this.connectionAuthenticator;
+    }
+
+    /**
+     * A request body, written by the transport when it sends the request.
+     * It may be written more than once, when the request is retried.
+     */
+    public interface Body {
+        /**
+         * @return the length in bytes, or -1 if not known in advance.
+         */
+        long getContentLength();
+
+        void writeTo(OutputStream out) throws IOException;
+
+        /**
+         * @return the body as a UTF-8 encoded string.
+         */
+        public static Body ofString(String data) {
+            final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+            return new Body() {
+                public long getContentLength() {
+                    return bytes.length;
+                }
+
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(bytes);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP response, independent of the transport that received it.
+ *
+ * Responses must be closed, which returns the connection to the
+ * transport for reuse.
+ */
+public interface TransportResponse extends Closeable {
+    int getStatusCode();
+
+    String getStatusMessage();
+
+    /**
+     * @return the first value of the header, matching the name case
+     *         insensitively, or null if it isn't present.
+     */
+    String getHeader(String name);
+
+    Map<String, List<String>> getHeaders();
+
+    /**
+     * The response body; for error statuses, the error body. Returns an
+     * empty stream if there is no body.
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * Release the response. Closing a response more than once has no
+     * effect.
+     */
+    void close();
+
+    /**
+     * Release the response without reading the rest of its body, closing
+     * the connection rather than keeping it for reuse. For responses
+     * nobody wants, such as the losing attempt of a hedged request, whose
+     * body may be large or slow to arrive.
+     */
+    default void abort() {
+        close();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.URL;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Blocking transport built on HttpsURLConnection, with connections kept
+ * alive and bounded by a {@link ConnectionPool}. This is the transport
+ * synchronous requests use by default.
+ *
+ * Asynchronous requests run {@link #execute} on the given executor, so
+ * each one holds a thread while in flight.
+ */
+public class URLConnectionTransport implements Transport {
+    private final SSLSocketFactory socketFactory;
+    private final ConnectionPool pool;
+    private final int connectTimeout;
+    private final Executor executor;
+
+    /**
+     * @param socketFactory  factory for the TLS connections; it should come
+     *                       from {@link ConnectionPool#wrap} so that the
+     *                       pool can track the connections.
+     * @param pool  pool bounding the number of requests in flight.
+     * @param connectTimeout  connect timeout in milliseconds.
+     * @param executor  runs asynchronous requests.
+     */
+    public URLConnectionTransport(SSLSocketFactory socketFactory,
+                                  ConnectionPool pool, int connectTimeout,
+                                  Executor executor) {
+        this.socketFactory = socketFactory;
+        this.pool = pool;
+        this.connectTimeout = connectTimeout;
+        this.executor = executor;
+    }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        URL url = request.getURI().toURL();
+        ConnectionPool.Lease lease = pool.lease(url, connectTimeout);
+        try {
+            HttpsURLConnection c = (HttpsURLConnection) url.openConnection();
+            c.setConnectTimeout(connectTimeout);
+            c.setSSLSocketFactory(socketFactory);
+            c.setRequestMethod(request.getMethod());
+            c.setInstanceFollowRedirects(false);
+            c.setUseCaches(false);
+            c.setDoInput(true);
+            for (Map.Entry<String, String> header
+                                    : request.getHeaders().entrySet()) {
+                c.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (request.getConnectionAuthenticator() != null) {
+                request.getConnectionAuthenticator()
+                       .authenticateConnection(c);
+            }
+            TransportRequest.Body body = request.getBody();
+            if (body != null) {
+                c.setDoOutput(true);
+                // Stream the body to the socket instead of letting
+                // HttpsURLConnection buffer all of it to count its length.
+                long length = body.getContentLength();
+                if (length >= 0)
+                    c.setFixedLengthStreamingMode(length);
+                else
+                    c.setChunkedStreamingMode(0);
+            }
+            c.connect();
+
+            if (body != null) {
+                OutputStream out = c.getOutputStream();
+                body.writeTo(out);
+                out.flush();
+                out.close();
+            }
+
+            // Fetch the status now, so errors surface from execute.
+            c.getResponseCode();
+            return new Response(c, lease);
+        } catch (IOException e) {
+            lease.release();
+            throw e;
+        } catch (RuntimeException e) {
+            lease.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Run {@link #execute} on the executor. If the future is cancelled
+     * before the response arrives, the response is closed when it does.
+     */
+    public CompletableFuture<TransportResponse> executeAsync(
+                                        final TransportRequest request) {
+        final CompletableFuture<TransportResponse> result =
+                                new CompletableFuture<TransportResponse>();
+        try {
+            executor.execute(() -> {
+                if (result.isDone())
+                    return;
+                try {
+                    TransportResponse response = execute(request);
+                    if (!result.complete(response))
+                        response.close();
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    public SSLSocketFactory getSocketFactory() { return this.socketFactory; }
+    public ConnectionPool getConnectionPool() { return this.pool; }
+    public int getConnectTimeout() { return this.connectTimeout; }
+    public Executor getExecutor() { return this.executor; }
+
+    /**
+     * Response on an HttpsURLConnection. Holds its pool lease until closed.
+     */
+    public static class Response implements TransportResponse {
+        private final HttpsURLConnection connection;
+        private final ConnectionPool.Lease lease;
+        private InputStream body;
+
+        Response(HttpsURLConnection connection, ConnectionPool.Lease lease) {
+            this.connection = connection;
+            this.lease = lease;
+        }
+
+        public int getStatusCode() {
+            try {
+                return connection.getResponseCode();
+            } catch (IOException e) {
+                // Already fetched in execute, so this can't happen.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public String getStatusMessage() {
+            try {
+                return connection.getResponseMessage();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return connection.getHeaderFields();
+        }
+
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                if (getStatusCode() >= 400)
+                    body = connection.getErrorStream();
+                else
+                    body = connection.getInputStream();
+                if (body == null)
+                    body = new ByteArrayInputStream(new byte[0]);
+            }
+            return body;
+        }
+
+        /**
+         * Drain and close the body, so the connection goes back to the
+         * keep-alive cache, and release the pool lease.
+         */
+        public void close() {
+            try {
+                BaseTransferAPIClient.drain(getBody());
+            } catch (IOException e) {
+                // Nothing to drain, the connection won't be reused.
+            }
+            lease.release();
+        }
+
+        /**
+         * Close the connection without draining the body, and release the
+         * pool lease.
+         */
+        public void abort() {
+            connection.disconnect();
+            lease.release();
+        }
+
+        /**
+         * Release the pool lease and hand the connection over to the
+         * caller, who becomes responsible for reading and closing it.
+         */
+        public HttpsURLConnection detach() {
+            lease.release();
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    private static final long OPEN_DURATION = 50; // milliseconds
+
+    // Opens at half of four calls failing; probes with two calls.
+    private final CircuitBreaker breaker = new CircuitBreaker(0.5, 1.0,
+                                    10 * 1000, 4, 4, OPEN_DURATION, 2);
+    private final FakeTransport fake = new FakeTransport();
+    private final CircuitBreakerTransport transport =
+                                new CircuitBreakerTransport(fake, breaker);
+
+    private void send(String resource) throws IOException {
+        transport.execute(FakeTransport.get(resource)).close();
+    }
+
+    private void open(String resource) throws IOException {
+        fake.respond(500, 500, 500, 500);
+        for (int i = 0; i < 4; i++)
+            send(resource);
+        assertEquals(CircuitBreaker.OPEN,
+                     breaker.getState(CircuitBreaker.key(resource)));
+    }
+
+    private void assertOpen(String resource) throws IOException {
+        try {
+            send(resource);
+            fail("expected CircuitOpenException");
+        } catch (CircuitOpenException e) {
+            assertEquals(CircuitBreaker.key(resource), e.getKey());
+        }
+    }
+
+    private static void waitOpenDuration() throws InterruptedException {
+        Thread.sleep(OPEN_DURATION * 2);
+    }
+
+    @Test
+    public void opensAtFailureRate() throws Exception {
+        fake.respond(200, 500, 200)
+            .then(new IOException("reset"));
+        send("/task/1");
+        send("/task/2");
+        send("/task/3");
+        // Two of three, but fewer than the minimum calls.
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState("/task"));
+        try {
+            send("/task/4");
+            fail("expected IOException");
+        } catch (IOException e) {
+            // The failure that opens it.
+        }
+        assertEquals(CircuitBreaker.OPEN, breaker.getState("/task"));
+        assertOpen("/task/5");
+        assertEquals(4, fake.getCalls());
+        CircuitBreaker.BreakerStats stats = breaker.getStats().get("/task");
+        assertEquals(1, stats.getOpened());
+        assertEquals(1, stats.getRejected());
+    }
+
+    @Test
+    public void clientErrorsAreNotFailures() throws Exception {
+        fake.respond(404, 404, 404, 404);
+        for (int i = 0; i < 4; i++)
+            send("/task/1");
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState("/task"));
+    }
+
+    @Test
+    public void endpointsHaveTheirOwnBreaker() throws Exception {
+        open("/endpoint/a/ls");
+        assertOpen("/endpoint/a");
+        fake.respond(200);
+        send("/endpoint/b/ls");
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState("/endpoint/b"));
+    }
+
+    @Test
+    public void probesCloseAgain() throws Exception {
+        open("/task");
+        waitOpenDuration();
+        TransportRequest request = FakeTransport.get("/task");
+        CircuitBreaker.Permit first = breaker.acquire(request);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState("/task"));
+        CircuitBreaker.Permit second = breaker.acquire(request);
+        // Only halfOpenCalls probes at a time.
+        try {
+            breaker.acquire(request);
+            fail("expected CircuitOpenException");
+        } catch (CircuitOpenException e) {
+            assertEquals(0, e.getRetryAfter());
+        }
+        first.success();
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState("/task"));
+        second.success();
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState("/task"));
+        assertEquals(0, breaker.getStats().get("/task").getWindowCalls());
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws Exception {
+        open("/task");
+        waitOpenDuration();
+        fake.respond(503);
+        send("/task");
+        assertEquals(CircuitBreaker.OPEN, breaker.getState("/task"));
+        assertEquals(2, breaker.getStats().get("/task").getOpened());
+        assertOpen("/task");
+    }
+
+    @Test
+    public void asyncRejectsWhileOpen() throws Exception {
+        open("/transfer");
+        try {
+            transport.executeAsync(FakeTransport.get("/transfer")).get();
+            fail("expected CircuitOpenException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CircuitOpenException);
+        }
+        assertEquals(4, fake.getCalls());
+    }
+
+    @Test
+    public void keys() {
+        assertEquals("/endpoint/a", CircuitBreaker.key("/endpoint/a/ls"));
+        assertEquals("/endpoint/a", CircuitBreaker.key("/endpoint/a"));
+        assertEquals("/task", CircuitBreaker.key("/task/1/event_list"));
+        assertEquals("/transfer", CircuitBreaker.key("/transfer"));
+        assertEquals("", CircuitBreaker.key(null));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+    private static final TransportRequest REQUEST = new TransportRequest(
+                        "GET", URI.create("https://example.org/v0.10/task"));
+
+    private static ConcurrencyLimiter singleSlot(long acquireTimeout) {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 1.5,
+                                                            0.9);
+        limiter.setAcquireTimeout(acquireTimeout);
+        return limiter;
+    }
+
+    /**
+     * Free the only slot around the time the queued request times out,
+     * so the handover races the timeout. Either outcome is fine, but the
+     * waiter must get a permit or a RequestRejectedException, and no slot
+     * may be lost.
+     */
+    @Test
+    public void releaseRacingTimeout() throws Exception {
+        ConcurrencyLimiter limiter = singleSlot(2);
+        ExecutorService releaser = Executors.newSingleThreadExecutor();
+        int granted = 0;
+        int rejected = 0;
+        try {
+            for (int i = 0; i < 2000; i++) {
+                final ConcurrencyLimiter.Permit held =
+                                                limiter.acquire(REQUEST);
+                // 1.5 to 2.5ms, around the 2ms timeout.
+                final long delay = 1500000 + (i % 20) * 50000;
+                Future<?> release = releaser.submit(() -> {
+                    LockSupport.parkNanos(delay);
+                    held.ignore();
+                });
+                try {
+                    limiter.acquire(REQUEST).ignore();
+                    granted++;
+                } catch (RequestRejectedException e) {
+                    rejected++;
+                }
+                release.get();
+            }
+        } finally {
+            releaser.shutdown();
+        }
+        assertEquals(2000, granted + rejected);
+        ConcurrencyLimiter.Stats stats = limiter.getStats();
+        assertEquals(0, stats.getInFlight());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(1, limiter.getLimit());
+    }
+
+    /**
+     * Interrupt a queued request while the slot is being handed to it.
+     */
+    @Test
+    public void releaseRacingInterrupt() throws Exception {
+        final ConcurrencyLimiter limiter =
+                            singleSlot(ConcurrencyLimiter.WAIT_FOREVER);
+        final AtomicReference<Throwable> failure =
+                                        new AtomicReference<Throwable>();
+        for (int i = 0; i < 1000; i++) {
+            ConcurrencyLimiter.Permit held = limiter.acquire(REQUEST);
+            Thread waiter = new Thread(() -> {
+                try {
+                    limiter.acquire(REQUEST).ignore();
+                } catch (InterruptedException e) {
+                    // Expected when the interrupt wins.
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            waiter.start();
+            while (limiter.getQueueDepth() == 0)
+                Thread.yield();
+            held.ignore();
+            waiter.interrupt();
+            waiter.join();
+        }
+        assertNull(failure.get());
+        assertEquals(0, limiter.getStats().getInFlight());
+        assertEquals(0, limiter.getQueueDepth());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CredentialWatcherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final CredentialWatcher.Listener IGNORE = client -> { };
+
+    @Test
+    public void directoryIsUnwatchedWithItsLastRegistration()
+            throws Exception {
+        CredentialWatcher watcher = CredentialWatcher.getInstance();
+        int before = watcher.getDirectoryCount();
+        File dir = folder.newFolder();
+        String cert = newFile(dir, "cert.pem");
+        String key = newFile(dir, "key.pem");
+
+        CredentialWatcher.Registration first = watcher.watch(null,
+                                Arrays.asList(cert, key, null), IGNORE);
+        CredentialWatcher.Registration second = watcher.watch(null,
+                                Arrays.asList(cert), IGNORE);
+        assertEquals(before + 1, watcher.getDirectoryCount());
+
+        first.close();
+        assertEquals(before + 1, watcher.getDirectoryCount());
+        first.close();
+        assertEquals(before + 1, watcher.getDirectoryCount());
+        second.close();
+        assertEquals(before, watcher.getDirectoryCount());
+    }
+
+    @Test
+    public void nonFilesAreNotWatched() throws Exception {
+        CredentialWatcher watcher = CredentialWatcher.getInstance();
+        int before = watcher.getDirectoryCount();
+        CredentialWatcher.Registration registration = watcher.watch(null,
+                Arrays.asList("classpath:ca.pem",
+                              folder.getRoot().getPath()), IGNORE);
+        assertEquals(before, watcher.getDirectoryCount());
+        registration.close();
+        assertEquals(before, watcher.getDirectoryCount());
+    }
+
+    private static String newFile(File dir, String name) throws Exception {
+        File f = new File(dir, name);
+        f.createNewFile();
+        return f.getPath();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URI;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport that answers from a script instead of the network, for
+ * testing the transports that wrap another one.
+ *
+ * Each call takes the next outcome: a {@link Response}, an IOException,
+ * or, for asynchronous calls, a future the test completes itself.
+ */
+class FakeTransport implements Transport {
+    private final Deque<Object> script = new ArrayDeque<Object>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    static TransportRequest get(String resource) {
+        return request("GET", resource);
+    }
+
+    static TransportRequest request(String method, String resource) {
+        TransportRequest request = new TransportRequest(method,
+                        URI.create("https://example.org/v0.10" + resource));
+        request.setResource(resource);
+        return request;
+    }
+
+    /** Answer the next calls with responses with these statuses. */
+    synchronized FakeTransport respond(int... statuses) {
+        for (int status : statuses)
+            script.add(new Response(status));
+        return this;
+    }
+
+    synchronized FakeTransport then(Object outcome) {
+        script.add(outcome);
+        return this;
+    }
+
+    int getCalls() {
+        return calls.get();
+    }
+
+    private synchronized Object next() {
+        calls.incrementAndGet();
+        Object outcome = script.poll();
+        if (outcome == null)
+            throw new AssertionError("Unexpected call");
+        return outcome;
+    }
+
+    public TransportResponse execute(TransportRequest request)
+            throws IOException {
+        Object outcome = next();
+        if (outcome instanceof IOException)
+            throw (IOException) outcome;
+        return (Response) outcome;
+    }
+
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<TransportResponse> executeAsync(
+                                                TransportRequest request) {
+        Object outcome = next();
+        if (outcome instanceof CompletableFuture)
+            return (CompletableFuture<TransportResponse>) outcome;
+        if (outcome instanceof IOException)
+            return CompletableFuture.failedFuture((IOException) outcome);
+        return CompletableFuture.completedFuture((Response) outcome);
+    }
+
+    static class Response implements TransportResponse {
+        private final int status;
+        private final Map<String, List<String>> headers =
+            new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        private volatile boolean closed;
+        private volatile boolean aborted;
+
+        Response(int status) {
+            this.status = status;
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, Collections.singletonList(value));
+            return this;
+        }
+
+        public int getStatusCode() { return status; }
+        public String getStatusMessage() { return ""; }
+
+        public String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null ? null : values.get(0);
+        }
+
+        public Map<String, List<String>> getHeaders() { return headers; }
+
+        public InputStream getBody() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        public void close() { closed = true; }
+        public void abort() { aborted = true; }
+
+        boolean isClosed() { return closed; }
+        boolean isAborted() { return aborted; }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+public class HedgingTransportTest {
+    private static final long DELAY = 10; // milliseconds
+
+    private final FakeTransport fake = new FakeTransport();
+    // Budget for one hedge, never refilled.
+    private final HedgingPolicy policy = new HedgingPolicy(0.95, DELAY,
+                                                           DELAY, 0, 1);
+    private final HedgingTransport transport =
+                                    new HedgingTransport(fake, policy);
+
+    private final CompletableFuture<TransportResponse> first =
+                                new CompletableFuture<TransportResponse>();
+    private final CompletableFuture<TransportResponse> second =
+                                new CompletableFuture<TransportResponse>();
+
+    private static void await(String what, BooleanSupplier condition)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(what, System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitCalls(int calls) throws InterruptedException {
+        await("no hedge sent", () -> fake.getCalls() >= calls);
+    }
+
+    @Test
+    public void hedgeWinsAndFirstIsCancelled() throws Exception {
+        fake.then(first).then(second);
+        CompletableFuture<TransportResponse> result =
+                    transport.executeAsync(FakeTransport.get("/task_list"));
+        awaitCalls(2);
+        FakeTransport.Response response = new FakeTransport.Response(200);
+        second.complete(response);
+        assertSame(response, result.get());
+        assertTrue(first.isCancelled());
+        // Counted just after the result is completed.
+        await("hedge win not counted",
+              () -> policy.getStats().getHedgeWins() == 1);
+        assertEquals(1, policy.getStats().getHedges());
+    }
+
+    @Test
+    public void firstWinsAndHedgeIsCancelled() throws Exception {
+        fake.then(first).then(second);
+        CompletableFuture<TransportResponse> result =
+                    transport.executeAsync(FakeTransport.get("/task_list"));
+        awaitCalls(2);
+        FakeTransport.Response response = new FakeTransport.Response(200);
+        first.complete(response);
+        assertSame(response, result.get());
+        // The hedge may still be registering its own cancellation.
+        await("hedge not cancelled", second::isCancelled);
+        assertEquals(0, policy.getStats().getHedgeWins());
+    }
+
+    @Test
+    public void serverErrorWaitsForTheOtherAttempt() throws Exception {
+        fake.then(first).then(second);
+        CompletableFuture<TransportResponse> result =
+                    transport.executeAsync(FakeTransport.get("/task_list"));
+        awaitCalls(2);
+        FakeTransport.Response failed = new FakeTransport.Response(503);
+        first.complete(failed);
+        assertFalse(result.isDone());
+        assertTrue(failed.isClosed());
+        FakeTransport.Response response = new FakeTransport.Response(200);
+        second.complete(response);
+        assertSame(response, result.get());
+    }
+
+    @Test
+    public void emptyBudgetSendsNoHedge() throws Exception {
+        fake.then(first).then(second);
+        CompletableFuture<TransportResponse> hedged =
+                    transport.executeAsync(FakeTransport.get("/task_list"));
+        awaitCalls(2);
+        second.complete(new FakeTransport.Response(200));
+        hedged.get();
+
+        CompletableFuture<TransportResponse> slow =
+                                new CompletableFuture<TransportResponse>();
+        fake.then(slow);
+        CompletableFuture<TransportResponse> result =
+                    transport.executeAsync(FakeTransport.get("/task_list"));
+        await("hedge not refused",
+              () -> policy.getStats().getBudgetExhausted() == 1);
+        assertEquals(3, fake.getCalls());
+        slow.complete(new FakeTransport.Response(200));
+        result.get();
+    }
+
+    @Test
+    public void cancelledRequestSendsNoHedge() throws Exception {
+        fake.then(first);
+        CompletableFuture<TransportResponse> result =
+                    transport.executeAsync(FakeTransport.get("/task_list"));
+        result.cancel(true);
+        assertTrue(first.isCancelled());
+        Thread.sleep(DELAY * 5);
+        assertEquals(1, fake.getCalls());
+        assertEquals(0, policy.getStats().getHedges());
+    }
+
+    @Test
+    public void nonIdempotentRequestsAreNotHedged() throws Exception {
+        fake.then(first);
+        CompletableFuture<TransportResponse> result = transport.executeAsync(
+                            FakeTransport.request("POST", "/transfer"));
+        assertSame(first, result);
+        Thread.sleep(DELAY * 5);
+        assertEquals(1, fake.getCalls());
+        assertEquals(0, policy.getStats().getRequests());
+    }
+
+    @Test
+    public void fastRequestIsNotHedged() throws Exception {
+        fake.respond(200);
+        assertEquals(200, transport.execute(FakeTransport.get("/task_list"))
+                                   .getStatusCode());
+        Thread.sleep(DELAY * 5);
+        assertEquals(1, fake.getCalls());
+        assertEquals(0, policy.getStats().getHedges());
+    }
+}
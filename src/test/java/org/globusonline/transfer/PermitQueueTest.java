@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+public class PermitQueueTest {
+    private volatile int limit = 1;
+    private final AtomicInteger discarded = new AtomicInteger();
+    private PermitQueue<Integer> queue;
+
+    private PermitQueue<Integer> newQueue(int maxQueued) {
+        queue = new PermitQueue<Integer>(() -> limit, maxQueued,
+                                         inFlight -> inFlight,
+                                         permit -> {
+                                             discarded.incrementAndGet();
+                                             queue.release();
+                                         });
+        return queue;
+    }
+
+    private CompletableFuture<Integer> acquire(long timeout) {
+        return queue.acquire(timeout,
+                             () -> new RequestRejectedException("full"),
+                             () -> new RequestRejectedException("timed out"));
+    }
+
+    private static String rejection(CompletableFuture<Integer> slot)
+            throws InterruptedException {
+        try {
+            slot.get();
+        } catch (ExecutionException e) {
+            return e.getCause().getMessage();
+        }
+        fail("not rejected");
+        return null;
+    }
+
+    @Test
+    public void handsOverInOrder() throws Exception {
+        newQueue(10);
+        assertTrue(acquire(PermitQueue.WAIT_FOREVER).isDone());
+        CompletableFuture<Integer> second = acquire(PermitQueue.WAIT_FOREVER);
+        CompletableFuture<Integer> third = acquire(PermitQueue.WAIT_FOREVER);
+        assertFalse(second.isDone());
+        queue.release();
+        assertTrue(second.isDone());
+        assertFalse(third.isDone());
+        queue.release();
+        assertEquals(1, (int) third.get());
+        assertEquals(3, queue.granted());
+        assertEquals(2, queue.queued());
+    }
+
+    @Test
+    public void rejectsWhenFullOrFailingFast() throws Exception {
+        newQueue(1);
+        acquire(PermitQueue.WAIT_FOREVER);
+        assertEquals("timed out", rejection(acquire(0)));
+        acquire(PermitQueue.WAIT_FOREVER);
+        assertEquals("full", rejection(acquire(PermitQueue.WAIT_FOREVER)));
+        assertEquals(2, queue.rejected());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void timesOutAsync() throws Exception {
+        newQueue(10);
+        acquire(PermitQueue.WAIT_FOREVER);
+        assertEquals("timed out", rejection(acquire(20)));
+        assertEquals(0, queue.size());
+        queue.release();
+        assertEquals(0, queue.inFlight());
+    }
+
+    @Test
+    public void cancelledWaiterFreesItsSlot() throws Exception {
+        newQueue(10);
+        acquire(PermitQueue.WAIT_FOREVER);
+        acquire(PermitQueue.WAIT_FOREVER).cancel(false);
+        queue.release();
+        assertEquals(1, discarded.get());
+        assertEquals(0, queue.inFlight());
+    }
+
+    @Test
+    public void raisedLimitHandsOutSlots() throws Exception {
+        newQueue(10);
+        acquire(PermitQueue.WAIT_FOREVER);
+        CompletableFuture<Integer> second = acquire(PermitQueue.WAIT_FOREVER);
+        CompletableFuture<Integer> third = acquire(PermitQueue.WAIT_FOREVER);
+        limit = 3;
+        queue.limitChanged();
+        assertEquals(3, (int) second.get());
+        assertEquals(3, (int) third.get());
+        assertEquals(3, queue.inFlight());
+    }
+
+    /**
+     * Free the only slot around the time the waiter times out, so the
+     * handover races the timeout. The waiter must get a permit or a
+     * rejection, and no slot may be lost.
+     */
+    @Test
+    public void releaseRacingTimeout() throws Exception {
+        newQueue(10);
+        ExecutorService releaser = Executors.newSingleThreadExecutor();
+        int granted = 0;
+        int rejected = 0;
+        try {
+            for (int i = 0; i < 2000; i++) {
+                acquire(PermitQueue.WAIT_FOREVER).get();
+                // 1.5 to 2.5ms, around the 2ms timeout.
+                final long delay = 1500000 + (i % 20) * 50000;
+                Future<?> release = releaser.submit(() -> {
+                    LockSupport.parkNanos(delay);
+                    queue.release();
+                });
+                try {
+                    queue.await(acquire(2), 2,
+                        () -> new RequestRejectedException("timed out"));
+                    queue.release();
+                    granted++;
+                } catch (RequestRejectedException e) {
+                    rejected++;
+                }
+                release.get();
+            }
+        } finally {
+            releaser.shutdown();
+        }
+        assertEquals(2000, granted + rejected);
+        assertEquals(0, queue.inFlight());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * Interrupt a waiter while the slot is being handed to it.
+     */
+    @Test
+    public void releaseRacingInterrupt() throws Exception {
+        newQueue(10);
+        final AtomicReference<Throwable> failure =
+                                        new AtomicReference<Throwable>();
+        for (int i = 0; i < 1000; i++) {
+            acquire(PermitQueue.WAIT_FOREVER).get();
+            Thread waiter = new Thread(() -> {
+                try {
+                    queue.await(acquire(PermitQueue.WAIT_FOREVER),
+                                PermitQueue.WAIT_FOREVER, null);
+                    queue.release();
+                } catch (InterruptedException e) {
+                    // Expected when the interrupt wins.
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            waiter.start();
+            while (queue.size() == 0)
+                Thread.yield();
+            queue.release();
+            waiter.interrupt();
+            waiter.join();
+        }
+        assertNull(failure.get());
+        assertEquals(0, queue.inFlight());
+        assertEquals(0, queue.size());
+    }
+}
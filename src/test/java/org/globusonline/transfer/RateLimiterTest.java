@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+    private final RateLimiter limiter = new RateLimiter();
+
+    private RateLimiter.BucketStats stats(String bucket) {
+        return limiter.getStats().getBuckets().get(bucket);
+    }
+
+    private void assertRejected(TransportRequest request) {
+        try {
+            limiter.reserve(request);
+            fail("expected RequestRejectedException");
+        } catch (RequestRejectedException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void burstThenReject() throws Exception {
+        limiter.setClientLimit(10, 2);
+        limiter.setAcquireTimeout(RateLimiter.FAIL_FAST);
+        TransportRequest request = FakeTransport.get("/task_list");
+        assertEquals(0, limiter.reserve(request).getWaitNanos());
+        assertEquals(0, limiter.reserve(request).getWaitNanos());
+        assertRejected(request);
+        RateLimiter.BucketStats stats = stats(RateLimiter.CLIENT);
+        assertEquals(2, stats.getAcquired());
+        assertEquals(1, stats.getRejected());
+    }
+
+    @Test
+    public void waitsOneIntervalPerToken() throws Exception {
+        limiter.setClientLimit(10, 1);
+        TransportRequest request = FakeTransport.get("/task_list");
+        assertEquals(0, limiter.reserve(request).getWaitNanos());
+        long wait = limiter.reserve(request).getWaitNanos();
+        assertTrue(wait + "ns", wait > TimeUnit.MILLISECONDS.toNanos(50)
+                   && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, stats(RateLimiter.CLIENT).getDelayed());
+    }
+
+    @Test
+    public void waitLongerThanTimeoutIsRejected() throws Exception {
+        limiter.setClientLimit(1, 1);
+        limiter.setAcquireTimeout(100);
+        TransportRequest request = FakeTransport.get("/task_list");
+        limiter.reserve(request);
+        assertRejected(request);
+    }
+
+    @Test
+    public void classLimitsOnlyTheirClass() throws Exception {
+        limiter.setLimit(RateLimiter.TASK, 1, 1);
+        limiter.setAcquireTimeout(RateLimiter.FAIL_FAST);
+        limiter.reserve(FakeTransport.get("/task/1"));
+        assertRejected(FakeTransport.get("/task_list"));
+        limiter.reserve(FakeTransport.get("/endpoint/a/ls"));
+        assertNull(stats(RateLimiter.CLIENT));
+    }
+
+    @Test
+    public void rejectionReturnsOtherBucketsToken() throws Exception {
+        limiter.setLimit(RateLimiter.TASK, 1, 2);
+        limiter.setClientLimit(1, 1);
+        limiter.setAcquireTimeout(RateLimiter.FAIL_FAST);
+        limiter.reserve(FakeTransport.get("/task/1"));
+        assertRejected(FakeTransport.get("/task/2"));
+        assertEquals(1, stats(RateLimiter.TASK).getAcquired());
+    }
+
+    @Test
+    public void cancelReturnsTokens() throws Exception {
+        limiter.setLimit(RateLimiter.TASK, 1, 1);
+        limiter.setClientLimit(1, 1);
+        limiter.setAcquireTimeout(RateLimiter.FAIL_FAST);
+        TransportRequest request = FakeTransport.get("/task/1");
+        RateLimiter.Reservation reservation = limiter.reserve(request);
+        limiter.cancel(request, reservation);
+        // Cancelling again gives nothing more back.
+        limiter.cancel(request, reservation);
+        assertEquals(0, stats(RateLimiter.CLIENT).getAcquired());
+        assertEquals(0, stats(RateLimiter.TASK).getAcquired());
+        limiter.reserve(request);
+        assertRejected(request);
+    }
+
+    @Test
+    public void interruptedWaitReturnsTokens() throws Exception {
+        limiter.setClientLimit(1, 1);
+        FakeTransport fake = new FakeTransport().respond(200);
+        RateLimitedTransport transport =
+                                    new RateLimitedTransport(fake, limiter);
+        transport.execute(FakeTransport.get("/task_list"));
+        Thread.currentThread().interrupt();
+        try {
+            transport.execute(FakeTransport.get("/task_list"));
+            fail("expected InterruptedIOException");
+        } catch (InterruptedIOException e) {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(1, fake.getCalls());
+        RateLimiter.BucketStats stats = stats(RateLimiter.CLIENT);
+        assertEquals(1, stats.getAcquired());
+        assertEquals(0, stats.getDelayed());
+        assertEquals(0, stats.getWaitMillis());
+    }
+
+    @Test
+    public void asyncRequestsAreDelayedNotRejected() throws Exception {
+        limiter.setClientLimit(5, 1);
+        limiter.setAcquireTimeout(1000);
+        FakeTransport fake = new FakeTransport().respond(200, 200);
+        RateLimitedTransport transport =
+                                    new RateLimitedTransport(fake, limiter);
+        transport.executeAsync(FakeTransport.get("/task_list")).get();
+        CompletableFuture<TransportResponse> delayed =
+                    transport.executeAsync(FakeTransport.get("/task_list"));
+        assertFalse(delayed.isDone());
+        assertEquals(1, fake.getCalls());
+        assertEquals(200, delayed.get().getStatusCode());
+        assertEquals(2, fake.getCalls());
+    }
+
+    @Test
+    public void resourceClasses() {
+        assertEquals(RateLimiter.TASK, RateLimiter.resourceClass("/task/1"));
+        assertEquals(RateLimiter.TASK,
+                     RateLimiter.resourceClass("/task_list"));
+        assertEquals(RateLimiter.ENDPOINT_LS,
+                     RateLimiter.resourceClass("/endpoint/a%23b/ls"));
+        assertEquals(RateLimiter.TRANSFER,
+                     RateLimiter.resourceClass("/transfer"));
+        assertEquals(RateLimiter.SUBMISSION_ID,
+                     RateLimiter.resourceClass("/submission_id"));
+        assertNull(RateLimiter.resourceClass("/endpoint/a"));
+        assertNull(RateLimiter.resourceClass(null));
+    }
+}
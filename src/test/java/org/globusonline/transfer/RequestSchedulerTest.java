@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class RequestSchedulerTest {
+    private final RequestScheduler scheduler = new RequestScheduler(1);
+    // The priority of each request given a turn, in order.
+    private final List<String> order = new ArrayList<String>();
+    private final List<RequestScheduler.Permit> permits =
+                                    new ArrayList<RequestScheduler.Permit>();
+
+    private static TransportRequest request(String priority) {
+        TransportRequest request = FakeTransport.get("/task_list");
+        request.setPriority(priority);
+        return request;
+    }
+
+    private CompletableFuture<RequestScheduler.Permit> queue(
+                                                        String priority) {
+        CompletableFuture<RequestScheduler.Permit> turn =
+                            scheduler.acquireAsync(request(priority));
+        turn.thenAccept(permit -> {
+            order.add(priority);
+            permits.add(permit);
+        });
+        return turn;
+    }
+
+    /** Release the slot until every queued request has had its turn. */
+    private void drain() {
+        for (int i = 0; i < permits.size(); i++)
+            permits.get(i).release();
+    }
+
+    @Test
+    public void sharesFollowWeights() throws Exception {
+        RequestScheduler.Permit held = scheduler.acquire(
+                                    request(RequestScheduler.NORMAL));
+        for (int i = 0; i < 20; i++)
+            queue(RequestScheduler.BULK);
+        for (int i = 0; i < 20; i++)
+            queue(RequestScheduler.INTERACTIVE);
+        assertTrue(order.isEmpty());
+        held.release();
+        drain();
+
+        assertEquals(40, order.size());
+        // Interactive has 16 times the weight of bulk: while both have
+        // requests queued, bulk gets one turn in 17.
+        List<String> first = order.subList(0, 17);
+        assertEquals(16, Collections.frequency(first,
+                                        RequestScheduler.INTERACTIVE));
+        assertEquals(1, Collections.frequency(first, RequestScheduler.BULK));
+        assertEquals(20, Collections.frequency(order, RequestScheduler.BULK));
+        RequestScheduler.ClassStats stats =
+                        scheduler.getStats().get(RequestScheduler.BULK);
+        assertEquals(20, stats.getSent());
+        assertEquals(20, stats.getQueued());
+        assertEquals(0, stats.getQueueDepth());
+    }
+
+    @Test
+    public void bulkIsNotStarved() throws Exception {
+        RequestScheduler.Permit held = scheduler.acquire(
+                                    request(RequestScheduler.NORMAL));
+        queue(RequestScheduler.BULK);
+        for (int i = 0; i < 100; i++)
+            queue(RequestScheduler.INTERACTIVE);
+        held.release();
+        drain();
+        assertTrue(order.indexOf(RequestScheduler.BULK) < 17);
+    }
+
+    @Test
+    public void idleClassDoesNotBankCredit() throws Exception {
+        RequestScheduler.Permit held = scheduler.acquire(
+                                    request(RequestScheduler.NORMAL));
+        for (int i = 0; i < 20; i++)
+            queue(RequestScheduler.INTERACTIVE);
+        held.release();
+        drain();
+
+        // Bulk was idle meanwhile; it starts level with interactive rather
+        // than with credit for the turns it didn't use.
+        order.clear();
+        permits.clear();
+        held = scheduler.acquire(request(RequestScheduler.NORMAL));
+        for (int i = 0; i < 3; i++)
+            queue(RequestScheduler.BULK);
+        for (int i = 0; i < 16; i++)
+            queue(RequestScheduler.INTERACTIVE);
+        held.release();
+        drain();
+        assertEquals(1, Collections.frequency(order.subList(0, 16),
+                                              RequestScheduler.BULK));
+    }
+
+    @Test
+    public void cancelledWaiterPassesItsTurnOn() throws Exception {
+        RequestScheduler.Permit held = scheduler.acquire(
+                                    request(RequestScheduler.NORMAL));
+        CompletableFuture<RequestScheduler.Permit> cancelled =
+                                        queue(RequestScheduler.INTERACTIVE);
+        CompletableFuture<RequestScheduler.Permit> next =
+                                        queue(RequestScheduler.BULK);
+        cancelled.cancel(true);
+        held.release();
+        assertTrue(next.isDone());
+        next.get().release();
+        // The slot is free again.
+        assertTrue(scheduler.acquireAsync(request(RequestScheduler.NORMAL))
+                            .isDone());
+    }
+
+    @Test
+    public void interruptedWaiterLeavesTheQueue() throws Exception {
+        RequestScheduler.Permit held = scheduler.acquire(
+                                    request(RequestScheduler.NORMAL));
+        Thread.currentThread().interrupt();
+        try {
+            scheduler.acquire(request(RequestScheduler.BULK));
+            fail("expected InterruptedException");
+        } catch (InterruptedException e) {
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+        assertEquals(0, scheduler.getStats().get(RequestScheduler.BULK)
+                                 .getQueueDepth());
+        held.release();
+        assertTrue(scheduler.acquireAsync(request(RequestScheduler.NORMAL))
+                            .isDone());
+    }
+
+    @Test
+    public void defaultPriorities() {
+        assertEquals(RequestScheduler.INTERACTIVE,
+                     scheduler.priority(FakeTransport.get("/transfer")));
+        assertEquals(RequestScheduler.INTERACTIVE,
+                     scheduler.priority(FakeTransport.get("/submission_id")));
+        assertEquals(RequestScheduler.BULK,
+                     scheduler.priority(FakeTransport.get("/task/1")));
+        assertEquals(RequestScheduler.NORMAL,
+                     scheduler.priority(FakeTransport.get("/endpoint/a")));
+        assertEquals(RequestScheduler.NORMAL,
+                     scheduler.priority(request(RequestScheduler.NORMAL)));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the cache against a local server that tags every document with an
+ * ETag and answers a matching If-None-Match with 304.
+ */
+public class ResponseCacheTest {
+    private HttpServer server;
+    private JSONTransferAPIClient client;
+    // The If-None-Match of each request, or "-" for none.
+    private final List<String> conditions =
+                                    new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void start() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        client = new JSONTransferAPIClient("user", "http://127.0.0.1:"
+                            + server.getAddress().getPort() + "/v0.10");
+        client.setUseHttpClient(true);
+        client.setAuthenticator(new GoauthAuthenticator("token"));
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        String path = exchange.getRequestURI().getPath();
+        String condition =
+                    exchange.getRequestHeaders().getFirst("If-None-Match");
+        conditions.add(condition == null ? "-" : condition);
+        String tag = "\"" + path.hashCode() + "\"";
+        exchange.getResponseHeaders().add("ETag", tag);
+        if (tag.equals(condition)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = ("{\"path\":\"" + path + "\"}")
+                                      .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private String get(String path) throws Exception {
+        return client.getResult(path).document.getString("path");
+    }
+
+    private String lastCondition() {
+        return conditions.get(conditions.size() - 1);
+    }
+
+    @Test
+    public void notModifiedIsServedFromCache() throws Exception {
+        ResponseCache cache = new ResponseCache();
+        client.setResponseCache(cache);
+        assertEquals("/v0.10/a", get("/a"));
+        assertEquals("-", lastCondition());
+        assertEquals("/v0.10/a", get("/a"));
+        assertEquals("\"" + "/v0.10/a".hashCode() + "\"", lastCondition());
+        assertEquals(1, cache.getStats().getHits());
+        assertEquals(1, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void everyHitGetsItsOwnDocument() throws Exception {
+        client.setResponseCache(new ResponseCache());
+        client.getResult("/a").document.put("path", "changed");
+        client.getResult("/a").document.put("path", "changed");
+        assertEquals("/v0.10/a", get("/a"));
+    }
+
+    @Test
+    public void tokenChangeKeepsCache() throws Exception {
+        ResponseCache cache = new ResponseCache();
+        client.setResponseCache(cache);
+        get("/a");
+        client.setAuthenticator(new GoauthAuthenticator("new token"));
+        get("/a");
+        assertEquals(1, cache.getStats().getHits());
+    }
+
+    /**
+     * A 304 to a request the cache didn't make conditional is a miss, and
+     * the request is sent again without its conditions.
+     */
+    @Test
+    public void strayNotModifiedIsResent() throws Exception {
+        client.setResponseCache(new ResponseCache());
+        final String tag = "\"" + "/v0.10/a".hashCode() + "\"";
+        final Authenticator token = new GoauthAuthenticator("token");
+        client.setAuthenticator(new Authenticator() {
+            public void authenticateConnection(HttpsURLConnection c) {
+                token.authenticateConnection(c);
+            }
+
+            public void authenticateRequest(TransportRequest request) {
+                token.authenticateRequest(request);
+                request.setHeader("If-None-Match", tag);
+            }
+        });
+        assertEquals("/v0.10/a", get("/a"));
+        assertEquals(2, conditions.size());
+        assertEquals("-", lastCondition());
+        assertEquals("/v0.10/a",
+                     client.getResultAsync("/a").get().document
+                           .getString("path"));
+    }
+
+    @Test
+    public void changeDropsPathsBelow() throws Exception {
+        ResponseCache cache = new ResponseCache();
+        client.setResponseCache(cache);
+        get("/e/a");
+        get("/e/a/ls");
+        get("/e/ab");
+        assertEquals(3, cache.getStats().getEntries());
+        client.postResult("/e/a", new JSONObject());
+        assertEquals(1, cache.getStats().getEntries());
+        get("/e/ab");
+        assertEquals(1, cache.getStats().getHits());
+        get("/e/a/ls");
+        assertEquals("-", lastCondition());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        ResponseCache cache = new ResponseCache(2, 1 << 20);
+        client.setResponseCache(cache);
+        get("/a");
+        get("/b");
+        get("/a");
+        get("/c");
+        assertEquals(2, cache.getStats().getEntries());
+        assertEquals(1, cache.getStats().getEvictions());
+        get("/b");
+        assertEquals("-", lastCondition());
+        get("/c");
+        assertEquals(2, cache.getStats().getHits());
+    }
+
+    @Test
+    public void evictsToStayUnderMaxBytes() throws Exception {
+        // Room for one of the {"path":"/v0.10/x"} documents, not two.
+        ResponseCache cache = new ResponseCache(10, 30);
+        client.setResponseCache(cache);
+        get("/a");
+        get("/b");
+        ResponseCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getEntries());
+        assertEquals(1, stats.getEvictions());
+        assertEquals(19, stats.getBytes());
+        get("/a");
+        assertEquals("-", lastCondition());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.globusonline.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class RetryingTransportTest {
+    private static final String[] RETRYABLE = {
+        APIError.SERVICE_UNAVAILABLE, APIError.SERVER_ERROR };
+
+    private final FakeTransport fake = new FakeTransport();
+
+    /** No delays, and a budget of the given number of retries. */
+    private static RetryPolicy policy(int budgetRetries) {
+        return new RetryPolicy(4, 0, 0, 60 * 1000, 0, budgetRetries,
+                               RETRYABLE);
+    }
+
+    @Test
+    public void retriesUntilSuccess() throws Exception {
+        RetryPolicy policy = policy(10);
+        FakeTransport.Response failed = new FakeTransport.Response(503);
+        fake.then(failed).respond(500, 200);
+        TransportResponse response = new RetryingTransport(fake, policy)
+                                .execute(FakeTransport.get("/task_list"));
+        assertEquals(200, response.getStatusCode());
+        assertEquals(3, fake.getCalls());
+        assertTrue(failed.isClosed());
+        RetryPolicy.Stats stats = policy.getStats();
+        assertEquals(2, stats.getRetries());
+        assertEquals(1, stats.getRecovered());
+        assertEquals(8, stats.getBudget(), 0.001);
+    }
+
+    @Test
+    public void lastFailureIsReturned() throws Exception {
+        FakeTransport.Response last = new FakeTransport.Response(503);
+        fake.respond(503, 503, 503).then(last);
+        TransportResponse response = new RetryingTransport(fake, policy(10))
+                                .execute(FakeTransport.get("/task_list"));
+        assertSame(last, response);
+        assertEquals(4, fake.getCalls());
+    }
+
+    @Test
+    public void emptyBudgetStopsRetries() throws Exception {
+        RetryPolicy policy = policy(2);
+        RetryingTransport transport = new RetryingTransport(fake, policy);
+        fake.respond(503, 503, 503, 503);
+        assertEquals(503, transport.execute(FakeTransport.get("/task"))
+                                   .getStatusCode());
+        assertEquals(3, fake.getCalls());
+        // Nothing left for the next request.
+        transport.execute(FakeTransport.get("/task"));
+        assertEquals(4, fake.getCalls());
+        RetryPolicy.Stats stats = policy.getStats();
+        assertEquals(2, stats.getRetries());
+        assertEquals(2, stats.getBudgetExhausted());
+        assertEquals(0, stats.getBudget(), 0.001);
+    }
+
+    @Test
+    public void requestsRefillBudget() throws Exception {
+        RetryPolicy policy = new RetryPolicy(4, 0, 0, 60 * 1000, 0.5, 1,
+                                             RETRYABLE);
+        RetryingTransport transport = new RetryingTransport(fake, policy);
+        fake.respond(503, 200, 503, 503, 200);
+        transport.execute(FakeTransport.get("/task"));
+        assertEquals(0, policy.getStats().getBudget(), 0.001);
+        // Half a retry isn't enough.
+        assertEquals(503, transport.execute(FakeTransport.get("/task"))
+                                   .getStatusCode());
+        assertEquals(0.5, policy.getStats().getBudget(), 0.001);
+        assertEquals(200, transport.execute(FakeTransport.get("/task"))
+                                   .getStatusCode());
+        assertEquals(5, fake.getCalls());
+    }
+
+    @Test
+    public void onlyIdempotentRequestsAreRetried() throws Exception {
+        fake.respond(503);
+        TransportResponse response = new RetryingTransport(fake, policy(10))
+                        .execute(FakeTransport.request("POST", "/transfer"));
+        assertEquals(503, response.getStatusCode());
+        assertEquals(1, fake.getCalls());
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws Exception {
+        fake.respond(404);
+        new RetryingTransport(fake, policy(10))
+                                .execute(FakeTransport.get("/task/1"));
+        assertEquals(1, fake.getCalls());
+    }
+
+    @Test
+    public void networkErrorsAreRetried() throws Exception {
+        RetryPolicy policy = policy(10);
+        fake.then(new IOException("reset")).respond(200);
+        new RetryingTransport(fake, policy)
+                                .execute(FakeTransport.get("/task_list"));
+        assertEquals(2, fake.getCalls());
+        assertEquals(Long.valueOf(1), policy.getStats()
+                        .getRetriesByCategory().get(RetryPolicy.NETWORK_ERROR));
+    }
+
+    @Test
+    public void rejectedRequestsAreNotRetried() throws Exception {
+        fake.then(new RequestRejectedException("full"));
+        try {
+            new RetryingTransport(fake, policy(10))
+                                .execute(FakeTransport.get("/task_list"));
+            fail("expected RequestRejectedException");
+        } catch (RequestRejectedException e) {
+            assertEquals(1, fake.getCalls());
+        }
+    }
+
+    @Test
+    public void asyncRetries() throws Exception {
+        fake.respond(503, 200);
+        TransportResponse response = new RetryingTransport(fake, policy(10))
+                    .executeAsync(FakeTransport.get("/task_list")).get();
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, fake.getCalls());
+    }
+
+    /**
+     * Each delay is drawn between the base delay and three times the
+     * previous one, capped at the maximum.
+     */
+    @Test
+    public void decorrelatedJitter() {
+        RetryPolicy policy = new RetryPolicy(4, 100, 1000, 60 * 1000, 0,
+                                             1000, RETRYABLE);
+        TransportRequest request = FakeTransport.get("/task_list");
+        Set<Long> seen = new HashSet<Long>();
+        for (int i = 0; i < 200; i++) {
+            long first = policy.nextDelay(request, 1, 0,
+                                          APIError.SERVER_ERROR, -1);
+            assertTrue(first + " out of range", first >= 100 && first <= 300);
+            long next = policy.nextDelay(request, 2, 500,
+                                         APIError.SERVER_ERROR, -1);
+            assertTrue(next + " out of range", next >= 100 && next <= 1000);
+            seen.add(first);
+        }
+        assertTrue(seen.size() > 1);
+    }
+
+    @Test
+    public void retryAfterIsLowerBound() {
+        RetryPolicy policy = new RetryPolicy(4, 100, 1000, 5000, 0, 10,
+                                             RETRYABLE);
+        TransportRequest request = FakeTransport.get("/task_list");
+        assertEquals(3000, policy.nextDelay(request, 1, 0,
+                                        RetryPolicy.TOO_MANY_REQUESTS, 3000));
+        assertEquals(-1, policy.nextDelay(request, 1, 0,
+                                        RetryPolicy.TOO_MANY_REQUESTS, 6000));
+        assertEquals(-1, policy.nextDelay(request, 4, 0,
+                                        APIError.SERVER_ERROR, -1));
+    }
+
+    @Test
+    public void parseRetryAfter() {
+        assertEquals(2000, RetryPolicy.parseRetryAfter(" 2 "));
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+        assertEquals(0, RetryPolicy.parseRetryAfter(
+                                    "Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}